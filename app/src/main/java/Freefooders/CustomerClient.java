@@ -4,8 +4,12 @@ import java.io.*;
 import java.net.Socket;
 import java.util.InputMismatchException;
 import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import com.google.gson.*;
+import model.CartItem;
+import protocol.WireProtocol;
 
 /**
  * Client for Freefooders that allows a customer to search for stores by food category,
@@ -61,6 +65,14 @@ public class CustomerClient {
      * @return the server's response, or an empty string on error
      */
     private String sendCommand(String command, String data) {
+        if (WireProtocol.ENABLED) {
+            try {
+                return WireProtocol.request(SERVER_HOST, SERVER_PORT, command, data, "");
+            } catch (IOException e) {
+                System.err.println("Client exception: " + e.getMessage());
+                return "";
+            }
+        }
         String response = "";
         try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
              OutputStream output = socket.getOutputStream();
@@ -154,7 +166,8 @@ public class CustomerClient {
             System.out.println("3. Search Stores by AvgPrice");
             System.out.println("4. Search Stores in " + this.getRadius() + "km radius");
             System.out.println("5. Purchase Product");
-            System.out.println("6. Exit");
+            System.out.println("6. Purchase Cart (several products, one store)");
+            System.out.println("7. Exit");
             System.out.print("Choice: ");
             int choice;
             try {
@@ -204,6 +217,36 @@ public class CustomerClient {
                     }
                     break;
                 case 6:
+                    System.out.print("Enter Store Name: ");
+                    String cartStore = scanner.nextLine();
+                    List<CartItem> cart = new ArrayList<>();
+                    while (true) {
+                        System.out.print("Enter Product Name (empty to finish): ");
+                        String cartProduct = scanner.nextLine();
+                        if (cartProduct.trim().isEmpty()) {
+                            break;
+                        }
+                        System.out.print("Enter Quantity: ");
+                        try {
+                            cart.add(new CartItem(cartProduct, Integer.parseInt(scanner.nextLine().trim())));
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid quantity, line skipped.");
+                        }
+                    }
+                    if (cart.isEmpty()) {
+                        System.out.println("Cart is empty.");
+                        break;
+                    }
+                    // one round trip for the whole cart; the store applies it all-or-nothing
+                    String cartResponse = sendCommand("PURCHASE_CART", cartStore + "|" + new Gson().toJson(cart));
+                    printPrettyResponse(cartResponse);
+                    if (cartResponse.contains("Successfully")) {
+                        int review = getValidInteger("Review", 5);
+                        String reviewResponse = sendCommand("REVIEW", cartStore + "|" + Integer.toString(review));
+                        printPrettyResponse(reviewResponse);
+                    }
+                    break;
+                case 7:
                     System.out.println("Exiting Customer Console.");
                     scanner.close();
                     return;
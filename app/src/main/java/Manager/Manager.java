@@ -6,6 +6,7 @@ import java.util.*;
 import com.google.gson.*;
 import model.Store;
 import model.Product;
+import protocol.WireProtocol;
 import java.util.InputMismatchException;
 import java.util.Scanner;
 import java.util.function.Function;
@@ -38,6 +39,14 @@ public class Manager {
      * @return the server's response, or an empty string on error
      */
     private String sendCommand(String command, String data) {
+        if (WireProtocol.ENABLED) {
+            try {
+                return WireProtocol.request(masterHost, masterPort, command, data, "");
+            } catch (IOException e) {
+                System.err.println("Error communicating with Master: " + e.getMessage());
+                return "";
+            }
+        }
         String response = "";
         try (Socket socket = new Socket(masterHost, masterPort);
              PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
@@ -286,14 +295,17 @@ public class Manager {
                         JsonObject jsonObject = JsonParser.parseString(aggProductResponse).getAsJsonObject();
                         int totalSales = 0;
 
-                        // Iterate over the entries to sum the total sales
+                        // Sum the per-store sales of every product ({"product": {"store": n}})
                         for (Map.Entry<String, JsonElement> entry : jsonObject.entrySet()) {
-                            try {
-                                // Convert each store’s sales string value to an integer
-                                int storeSales = Integer.parseInt(entry.getValue().getAsString());
-                                totalSales += storeSales;
-                            } catch (NumberFormatException e) {
-                                // If it's not a valid number (for example, an error message) ignore it
+                            if (!entry.getValue().isJsonObject()) {
+                                continue;   // e.g. an error message
+                            }
+                            for (Map.Entry<String, JsonElement> perStore : entry.getValue().getAsJsonObject().entrySet()) {
+                                try {
+                                    totalSales += perStore.getValue().getAsInt();
+                                } catch (NumberFormatException | IllegalStateException e) {
+                                    // not a number; ignore it
+                                }
                             }
                         }
 
@@ -4,6 +4,7 @@ import model.Product;
 import model.Store;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Handles product operations for a store:
@@ -17,7 +18,7 @@ public class ProductManager {
     private List<String> deletedProducts;
 
     public ProductManager() {
-        deletedProducts = new ArrayList<>();
+        deletedProducts = new CopyOnWriteArrayList<>();
     }
 
     /**
@@ -28,8 +29,13 @@ public class ProductManager {
      * @return A message indicating success.
      */
     public String addProduct(Store store, Product product) {
-        store.addProduct(product);
-        store.updateStorePrices();
+        synchronized (store) {
+            if (store.isFrozen()) {
+                return store.frozenReply();
+            }
+            store.addProduct(product);
+            store.updateStorePrices();
+        }
         return "Product " + product.getProductName() + " added to store " + store.getStoreName() + ".";
     }
 
@@ -42,10 +48,18 @@ public class ProductManager {
      * @return A message indicating success or failure.
      */
     public String removeProduct(Store store, String productName) {
-        boolean removed = store.removeProduct(productName);
+        boolean removed;
+        synchronized (store) {
+            if (store.isFrozen()) {
+                return store.frozenReply();
+            }
+            removed = store.removeProduct(productName);
+            if (removed) {
+                store.updateStorePrices();
+            }
+        }
         if (removed) {
             deletedProducts.add(productName);
-            store.updateStorePrices();
             return "Product " + productName + " removed from store " + store.getStoreName() + ".";
         } else {
             return "Product " + productName + " not found in store " + store.getStoreName() + ".";
@@ -61,33 +75,36 @@ public class ProductManager {
      * @return A message indicating success or failure.
      */
     public String updateProductAmount(Store store, String productName, int newAmount) {
-        for (Product product : store.getProducts()) {
-            if (product.getProductName() != null && product.getProductName().equals(productName)) {
-                product.setAvailableAmount(newAmount);
-                return "Product " + productName + " amount updated to " + newAmount + " in store " + store.getStoreName() + ".";
+        Product product = store.getProduct(productName);
+        if (product != null) {
+            Integer set = store.changeStock(product, current -> newAmount);
+            if (set == null) {
+                return store.frozenReply();
+            }
+            if (set < 0) {
+                return "Product " + productName + " amount cannot be negative.";
             }
+            return "Product " + productName + " amount updated to " + newAmount + " in store " + store.getStoreName() + ".";
         }
         return "Product " + productName + " not found in store " + store.getStoreName() + ".";
     }
 
     /**
-     * Retrieves a list of deleted product names.
+     * Returns the names of the deleted products, oldest first.
      *
-     * @return A formatted string listing deleted products.
+     * @return a snapshot of the deleted product names
      */
-    public String getDeletedProductsReport() {
-        if (deletedProducts.isEmpty()) {
-            return "No products have been deleted.";
-        }
-        StringBuilder report = new StringBuilder("DELETED PRODUCTS: ");
-        for (String productName : deletedProducts) {
-            report.append(productName).append(", ");
-        }
-        // Remove trailing comma and space
-        if (report.length() > 0) {
-            report.setLength(report.length() - 2);
-        }
-        return report.toString();
+    public List<String> getDeletedProducts() {
+        return new ArrayList<>(deletedProducts);
+    }
+
+    /**
+     * Replaces the deleted product names, e.g. with those of a recovered snapshot.
+     *
+     * @param names the deleted product names, oldest first
+     */
+    public void setDeletedProducts(List<String> names) {
+        deletedProducts = new CopyOnWriteArrayList<>(names);
     }
 
     /**
@@ -107,17 +124,17 @@ public class ProductManager {
         // Trim the incoming productName
         productName = productName.trim();
 
-        for (Product product : store.getProducts()) {
-            // Check with trimmed stored product name
-            if (product.getProductName() != null
-                    && product.getProductName().trim().equals(productName)) {
-
-                int newAmount = product.getAvailableAmount() + increment;
-                product.setAvailableAmount(newAmount);
-
-                return "Product " + productName + " amount increased by " + increment +
-                        " in store " + store.getStoreName() + ". New amount: " + newAmount + ".";
+        // the store's product index is keyed by trimmed names
+        Product product = store.getProduct(productName);
+        if (product != null) {
+            // atomic, so a concurrent order cannot overwrite the increment
+            Integer newAmount = store.changeStock(product, current -> current + increment);
+            if (newAmount == null) {
+                return store.frozenReply();
             }
+
+            return "Product " + productName + " amount increased by " + increment +
+                    " in store " + store.getStoreName() + ". New amount: " + newAmount + ".";
         }
         return "Product " + productName + " not found in store " + store.getStoreName() + ".";
     }
@@ -135,18 +152,18 @@ public class ProductManager {
     public String decrementProductAmount(Store store, String productName, int decrement) {
         // Trim the incoming productName
         productName = productName.trim();
-        for (Product product : store.getProducts()) {
-            // Check with trimmed stored product name
-            if (product.getProductName() != null && product.getProductName().trim().equals(productName)) {
-                int currentAmount = product.getAvailableAmount();
-                if (decrement > currentAmount) {
-                    return "You cannot remove " + decrement + " units; only " + currentAmount + " available.";
-                } else {
-                    product.setAvailableAmount(currentAmount - decrement);
-                    return "Product " + productName + " amount decreased by " + decrement +
-                            " in store " + store.getStoreName() + ". New amount: " + (currentAmount - decrement) + ".";
-                }
+        Product product = store.getProduct(productName);
+        if (product != null) {
+            // same compare-and-set as an order, so the two never oversell together
+            Integer newAmount = store.changeStock(product, current -> current - decrement);
+            if (newAmount == null) {
+                return store.frozenReply();
+            }
+            if (newAmount < 0) {
+                return "You cannot remove " + decrement + " units; only " + product.getAvailableAmount() + " available.";
             }
+            return "Product " + productName + " amount decreased by " + decrement +
+                    " in store " + store.getStoreName() + ". New amount: " + newAmount + ".";
         }
         return "Product " + productName + " not found in store " + store.getStoreName() + ".";
     }
@@ -0,0 +1,176 @@
+package Manager;
+
+import model.Store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uniform latitude/longitude grid over the stores of one worker.
+ * <p>
+ * Every store sits in exactly one cell of {@link #CELL_DEGREES} x {@link #CELL_DEGREES}.
+ * A radius query turns the circle into a bounding box, visits only the cells
+ * the box overlaps, drops stores outside the box and runs the exact haversine
+ * check on the few that remain.
+ * <p>
+ * The index is kept in step with the {@link StoreManager} that owns it and is
+ * safe for concurrent readers and writers.
+ */
+public class SpatialIndex {
+    /** Cell edge in degrees (about 5.5 km of latitude by default). */
+    public static final double CELL_DEGREES =
+            Double.parseDouble(System.getProperty("freefood.spatial.cellDegrees", "0.05"));
+
+    private static final double EARTH_RADIUS_KM = 6371;
+    /** Keeps stores on the circle's edge from being pruned by rounding. */
+    private static final double BOX_SLACK_DEGREES = 1e-9;
+
+    private static final long COLUMNS = Math.round(360 / CELL_DEGREES);
+    private static final long MIN_COLUMN = (long) Math.floor(-180 / CELL_DEGREES);
+
+    private final Map<Long, Set<Store>> cells = new ConcurrentHashMap<>();
+    private final Map<String, Long> cellOfStore = new ConcurrentHashMap<>();
+
+    /** Adds a store, replacing any store indexed under the same name. */
+    public void add(Store store) {
+        long cell = cellOf(store.getLatitude(), store.getLongitude());
+        Long previous = cellOfStore.put(store.getStoreName(), cell);
+        if (previous != null) {
+            removeFromCell(previous, store.getStoreName());
+        }
+        // compute() so a concurrent removal cannot drop the cell we are adding to
+        cells.compute(cell, (c, stores) -> {
+            Set<Store> set = stores != null ? stores : ConcurrentHashMap.newKeySet();
+            set.add(store);
+            return set;
+        });
+    }
+
+    /** Removes a store by name; unknown names are ignored. */
+    public void remove(String storeName) {
+        Long cell = cellOfStore.remove(storeName);
+        if (cell != null) {
+            removeFromCell(cell, storeName);
+        }
+    }
+
+    /** Number of indexed stores. */
+    public int size() {
+        return cellOfStore.size();
+    }
+
+    /**
+     * Finds all stores within {@code radiusKm} of the given point.
+     *
+     * @param latitude  latitude of the centre
+     * @param longitude longitude of the centre
+     * @param radiusKm  search radius in kilometres
+     * @return the matching stores, in no particular order
+     */
+    public List<Store> withinRadius(double latitude, double longitude, double radiusKm) {
+        List<Store> result = new ArrayList<>();
+        if (radiusKm < 0) {
+            return result;
+        }
+
+        // bounding box of the circle (same sphere as distanceKm); near the
+        // poles, or for very large radii, it spans every longitude
+        double angular = radiusKm / EARTH_RADIUS_KM;
+        double dLat = Math.toDegrees(angular) + BOX_SLACK_DEGREES;
+        double minLat = latitude - dLat;
+        double maxLat = latitude + dLat;
+        double sinRatio = Math.sin(Math.min(angular, Math.PI / 2))
+                / Math.cos(Math.toRadians(latitude));
+        boolean allLongitudes = minLat <= -90 || maxLat >= 90
+                || angular >= Math.PI / 2 || sinRatio >= 1;
+        double dLon = allLongitudes ? 180 : Math.toDegrees(Math.asin(sinRatio)) + BOX_SLACK_DEGREES;
+        double minLon = longitude - dLon;
+        double maxLon = longitude + dLon;
+
+        long rowFrom = row(minLat), rowTo = row(maxLat);
+        long colFrom = col(minLon), colTo = col(maxLon);
+        long boxCells = (rowTo - rowFrom + 1) * (colTo - colFrom + 1);
+
+        if (allLongitudes || colTo - colFrom + 1 >= COLUMNS || boxCells > cells.size()) {
+            // a huge radius: cheaper to walk the occupied cells than the box
+            for (Set<Store> cell : cells.values()) {
+                collect(cell, latitude, longitude, radiusKm,
+                        minLat, maxLat, minLon, maxLon, allLongitudes, result);
+            }
+            return result;
+        }
+        for (long r = rowFrom; r <= rowTo; r++) {
+            for (long c = colFrom; c <= colTo; c++) {
+                Set<Store> cell = cells.get(key(r, wrapCol(c)));
+                if (cell != null) {
+                    collect(cell, latitude, longitude, radiusKm,
+                            minLat, maxLat, minLon, maxLon, false, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Great-circle distance in kilometres (haversine formula). */
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /* ---------- helpers ---------- */
+
+    private static void collect(Set<Store> cell, double lat, double lon, double radiusKm,
+                                double minLat, double maxLat, double minLon, double maxLon,
+                                boolean allLongitudes, List<Store> out) {
+        for (Store s : cell) {
+            double sLat = s.getLatitude();
+            if (sLat < minLat || sLat > maxLat) continue;
+            if (!allLongitudes && !inLonRange(s.getLongitude(), minLon, maxLon)) continue;
+            if (distanceKm(lat, lon, sLat, s.getLongitude()) <= radiusKm) {
+                out.add(s);
+            }
+        }
+    }
+
+    /** Longitude range check that also works when the box crosses the antimeridian. */
+    private static boolean inLonRange(double lon, double minLon, double maxLon) {
+        return (lon >= minLon && lon <= maxLon)
+                || (lon + 360 >= minLon && lon + 360 <= maxLon)
+                || (lon - 360 >= minLon && lon - 360 <= maxLon);
+    }
+
+    private void removeFromCell(long cell, String storeName) {
+        cells.computeIfPresent(cell, (c, stores) -> {
+            stores.removeIf(s -> s.getStoreName().equals(storeName));
+            return stores.isEmpty() ? null : stores;
+        });
+    }
+
+    private static long cellOf(double latitude, double longitude) {
+        return key(row(latitude), wrapCol(col(longitude)));
+    }
+
+    private static long row(double latitude) {
+        return (long) Math.floor(latitude / CELL_DEGREES);
+    }
+
+    private static long col(double longitude) {
+        return (long) Math.floor(longitude / CELL_DEGREES);
+    }
+
+    /** Maps a column index back into [-180, 180) so the antimeridian wraps around. */
+    private static long wrapCol(long col) {
+        return Math.floorMod(col - MIN_COLUMN, COLUMNS) + MIN_COLUMN;
+    }
+
+    private static long key(long row, long col) {
+        return (row << 32) ^ (col & 0xFFFFFFFFL);
+    }
+}
@@ -1,22 +1,46 @@
 package Manager;
 
 import model.Store;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * Handles operations related to store management:
  * - Adding new stores
  * - Removing stores
  * - Providing access to the stored stores
+ *
+ * The backing map is concurrent so that a worker can serve commands for
+ * different stores from several threads at once without a global lock.
+ * A {@link SpatialIndex} over the stores' coordinates is kept alongside it
+ * for radius searches, together with hash indexes from normalized food
+ * category, star rating and price tier to the matching stores.
+ *
+ * The attribute indexes follow a store's changes through its change listener
+ * (reviews, price recalculation after product changes), which the store fires
+ * while holding its own lock; adding and removing a store take the same lock,
+ * so index updates for one store never interleave.
  */
 public class StoreManager {
-    private Map<String, Store> storeMap;
+    private final Map<String, Store> storeMap;
+    private final SpatialIndex spatialIndex = new SpatialIndex();
+
+    private final Map<String, Set<Store>>  byCategory  = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Store>> byStars     = new ConcurrentHashMap<>();
+    private final Map<String, Set<Store>>  byPriceTier = new ConcurrentHashMap<>();
+    /** The keys each store is currently indexed under, so it can be unindexed. */
+    private final Map<String, IndexedKeys> indexedKeys = new ConcurrentHashMap<>();
+    private final Consumer<Store> reindexer = this::reindex;
 
     public StoreManager() {
-        // Synchronized map to ensure thread-safety
-        storeMap = Collections.synchronizedMap(new HashMap<>());
+        // Concurrent map: lock-free reads, weakly consistent iteration
+        storeMap = new ConcurrentHashMap<>();
     }
 
     /**
@@ -25,11 +49,15 @@ public class StoreManager {
      * @param store The store to add.
      * @return A message indicating success or failure.
      */
-    public synchronized String addStore(Store store) {
-        if (storeMap.containsKey(store.getStoreName())) {
-            return "Store already exists.";
+    public String addStore(Store store) {
+        synchronized (store) {
+            if (storeMap.putIfAbsent(store.getStoreName(), store) != null) {
+                return "Store already exists.";
+            }
+            spatialIndex.add(store);
+            store.setChangeListener(reindexer);
+            reindex(store);
         }
-        storeMap.put(store.getStoreName(), store);
         return "Store " + store.getStoreName() + " added successfully.";
     }
 
@@ -39,13 +67,22 @@ public class StoreManager {
      * @param storeName The name of the store to remove.
      * @return A message indicating success or failure.
      */
-    public synchronized String removeStore(String storeName) {
-        if (storeMap.containsKey(storeName)) {
-            storeMap.remove(storeName);
-            return "Store " + storeName + " removed successfully.";
-        } else {
+    public String removeStore(String storeName) {
+        Store store = storeMap.get(storeName);
+        if (store == null) {
             return "Store " + storeName + " not found.";
         }
+        synchronized (store) {
+            if (!storeMap.remove(storeName, store)) {
+                return "Store " + storeName + " not found.";
+            }
+            spatialIndex.remove(storeName);
+            unindex(store);
+            if (store.getChangeListener() == reindexer) {
+                store.setChangeListener(null);
+            }
+        }
+        return "Store " + storeName + " removed successfully.";
     }
 
     /**
@@ -54,16 +91,142 @@ public class StoreManager {
      * @param storeName The name of the store.
      * @return The Store object, or null if not found.
      */
-    public synchronized Store getStore(String storeName) {
+    public Store getStore(String storeName) {
         return storeMap.get(storeName);
     }
 
+    /**
+     * Returns the stores within a radius of a point, using the spatial index.
+     *
+     * @param latitude  latitude of the centre
+     * @param longitude longitude of the centre
+     * @param radiusKm  radius in kilometres
+     * @return the stores whose haversine distance is at most {@code radiusKm}
+     */
+    public List<Store> getStoresWithinRadius(double latitude, double longitude, double radiusKm) {
+        return spatialIndex.withinRadius(latitude, longitude, radiusKm);
+    }
+
+    /**
+     * Returns the stores of a food category, compared case-insensitively.
+     *
+     * @param category the food category
+     * @return the matching stores
+     */
+    public List<Store> getStoresByCategory(String category) {
+        return snapshot(byCategory.get(normalizeCategory(category)));
+    }
+
+    /**
+     * Returns the stores with the given star rating.
+     *
+     * @param stars the star rating
+     * @return the matching stores
+     */
+    public List<Store> getStoresByStars(int stars) {
+        return snapshot(byStars.get(stars));
+    }
+
+    /**
+     * Returns the stores in a price tier.
+     *
+     * @param priceSymbol the tier symbol, e.g. "$$"
+     * @return the matching stores
+     */
+    public List<Store> getStoresByPriceTier(String priceSymbol) {
+        return snapshot(byPriceTier.get(priceSymbol));
+    }
+
     /**
      * Returns all stores.
      *
-     * @return The map of store names to Store objects.
+     * @return The live, concurrent map of store names to Store objects.
      */
-    public synchronized Map<String, Store> getAllStores() {
+    public Map<String, Store> getAllStores() {
         return storeMap;
     }
+
+    /* ---------- attribute indexes ---------- */
+
+    /** Moves a store to the index entries matching its current attributes; caller holds the store's lock. */
+    private void reindex(Store store) {
+        if (storeMap.get(store.getStoreName()) != store) {
+            return;             // a change on a store this manager no longer holds
+        }
+        IndexedKeys now = new IndexedKeys(normalizeCategory(store.getFoodCategory()),
+                store.getStars(), store.getAveragePriceOfStoreSymbol());
+        IndexedKeys before = indexedKeys.put(store.getStoreName(), now);
+        if (before != null) {
+            if (now.equals(before)) {
+                return;
+            }
+            removeFrom(byCategory, before.category, store);
+            removeFrom(byStars, before.stars, store);
+            removeFrom(byPriceTier, before.priceTier, store);
+        }
+        addTo(byCategory, now.category, store);
+        addTo(byStars, now.stars, store);
+        addTo(byPriceTier, now.priceTier, store);
+    }
+
+    private void unindex(Store store) {
+        IndexedKeys before = indexedKeys.remove(store.getStoreName());
+        if (before != null) {
+            removeFrom(byCategory, before.category, store);
+            removeFrom(byStars, before.stars, store);
+            removeFrom(byPriceTier, before.priceTier, store);
+        }
+    }
+
+    private static <K> void addTo(Map<K, Set<Store>> index, K key, Store store) {
+        if (key == null) return;
+        index.compute(key, (k, stores) -> {
+            Set<Store> set = stores != null ? stores : ConcurrentHashMap.newKeySet();
+            set.add(store);
+            return set;
+        });
+    }
+
+    private static <K> void removeFrom(Map<K, Set<Store>> index, K key, Store store) {
+        if (key == null) return;
+        index.computeIfPresent(key, (k, stores) -> {
+            stores.remove(store);
+            return stores.isEmpty() ? null : stores;
+        });
+    }
+
+    private static List<Store> snapshot(Set<Store> stores) {
+        return stores == null ? new ArrayList<>() : new ArrayList<>(stores);
+    }
+
+    private static String normalizeCategory(String category) {
+        return category == null ? null : category.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /** Index keys of one store at the time it was last indexed. */
+    private static final class IndexedKeys {
+        final String category;
+        final Integer stars;
+        final String priceTier;
+
+        IndexedKeys(String category, int stars, String priceTier) {
+            this.category  = category;
+            this.stars     = stars;
+            this.priceTier = priceTier;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IndexedKeys)) return false;
+            IndexedKeys k = (IndexedKeys) o;
+            return Objects.equals(category, k.category)
+                    && stars.equals(k.stars)
+                    && Objects.equals(priceTier, k.priceTier);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(category, stars, priceTier);
+        }
+    }
 }
@@ -1,13 +1,38 @@
 package Master;
 
 import java.io.*;
+import java.lang.reflect.Type;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import Reduce.ReduceHandler;
+import Worker.Worker;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+import mapreduce.MapReduceFramework;
 import model.Store;
 
 public class ActionForClients implements Runnable {
+    /**
+     * Where reduce commands are reduced: "embedded" runs the reducer inside the
+     * Master on the partials returned by the workers, "server" routes them through
+     * the standalone Reduce server (better suited to very large jobs).
+     */
+    private static final boolean EMBEDDED_REDUCE =
+            !"server".equalsIgnoreCase(System.getProperty("freefood.reduce.mode", "embedded"));
+
+    /** Deadline for gathering all worker responses of one request. */
+    private static final long GATHER_DEADLINE_MS =
+            Long.getLong("freefood.gather.deadlineMs", WorkerChannel.REQUEST_TIMEOUT_MS);
+
     private final Socket clientSocket;
     private final BufferedReader initialReader;
     private final String firstLine;
@@ -32,95 +57,182 @@ public class ActionForClients implements Runnable {
             String cmd  = firstLine;
             String data = in.readLine();
 
-            // Authentication check (skip for register/login and all manager commands)
-            final Set<String> managerCmds = new HashSet<>(Arrays.asList(
-                    "ADD_PRODUCT", "REMOVE_PRODUCT",
-                    "UPDATE_PRODUCT_AMOUNT", "INCREMENT_PRODUCT_AMOUNT",
-                    "DECREMENT_PRODUCT_AMOUNT", "PURCHASE_PRODUCT","STORE_DETAILS","GET_STOCK","GET_LOGO",
-                    "REVIEW", "ADD_STORE", "REMOVE_STORE",
-                    // also exempt these reduce/list commands
-                    "SEARCH", "AGGREGATE_SALES_BY_PRODUCT_NAME",
-                    "LIST_STORES", "DELETED_PRODUCTS"
-            ));
-            if (!cmd.equalsIgnoreCase("REGISTER")
-                    && !cmd.equalsIgnoreCase("LOGIN")
-                    && !managerCmds.contains(cmd.toUpperCase())) {
-                // Everything else must carry a session token
-                String[] parts = data.split("\\|", 2);
-                if (parts.length < 2) {
-                    out.println("{\"error\":\"Missing session token.\"}");
-                    return;
-                }
-                String token   = parts[0];
-                String payload = parts[1];
-                if (!MasterServer.userSessions.containsKey(token)) {
-                    out.println("{\"error\":\"Invalid or expired session token.\"}");
-                    return;
-                }
-                data = payload;  // strip off token for downstream processing
+            out.println(respond(cmd, data));
+            afterResponse(cmd, data);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try { clientSocket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Executes one client command independently of the transport it arrived on:
+     * authenticates it, forwards it to the workers and reduces the result if needed.
+     *
+     * @param cmd  the command
+     * @param data the command's data line
+     * @return the response to send to the client
+     */
+    static String respond(String cmd, String data) {
+        // Authentication check (skip for register/login and all manager commands)
+        final Set<String> managerCmds = new HashSet<>(Arrays.asList(
+                "ADD_PRODUCT", "REMOVE_PRODUCT",
+                "UPDATE_PRODUCT_AMOUNT", "INCREMENT_PRODUCT_AMOUNT",
+                "DECREMENT_PRODUCT_AMOUNT", "PURCHASE_PRODUCT","PURCHASE_CART","STORE_DETAILS","GET_STOCK","GET_LOGO",
+                "REVIEW", "ADD_STORE", "REMOVE_STORE",
+                // also exempt these reduce/list commands
+                "SEARCH", "AGGREGATE_SALES_BY_PRODUCT_NAME",
+                "LIST_STORES", "DELETED_PRODUCTS"
+        ));
+        if (!cmd.equalsIgnoreCase("REGISTER")
+                && !cmd.equalsIgnoreCase("LOGIN")
+                && !managerCmds.contains(cmd.toUpperCase())) {
+            // Everything else must carry a session token
+            String[] parts = data.split("\\|", 2);
+            if (parts.length < 2) {
+                return "{\"error\":\"Missing session token.\"}";
             }
+            String token   = parts[0];
+            String payload = parts[1];
+            if (!MasterServer.userSessions.containsKey(token)) {
+                return "{\"error\":\"Invalid or expired session token.\"}";
+            }
+            data = payload;  // strip off token for downstream processing
+        }
 
-            String jobId = generateJobId();
+        String jobId = generateJobId();
 
-            List<String> responses = forwardToWorkers(cmd, data, jobId);
-            String finalResponse;
-            Gson gson = new Gson();
+        Set<String> reduces = Set.of(
+                "SEARCH", "AGGREGATE_SALES_BY_PRODUCT_NAME",
+                "LIST_STORES", "DELETED_PRODUCTS"
+        );
+        boolean needsReduce = reduces.contains(cmd.toUpperCase());
+        boolean embedded = needsReduce && EMBEDDED_REDUCE;
+        // register before forwarding so a fast reducer cannot beat us to it
+        CompletableFuture<String> reduceResult =
+                needsReduce && !embedded ? PendingReduces.register(cmd, jobId) : null;
 
-            if ("ADD_STORE".equalsIgnoreCase(cmd) || "REMOVE_STORE".equalsIgnoreCase(cmd)) {
-                finalResponse = responses.isEmpty() ? "[]" : responses.get(0);
+        List<String> responses = forwardToWorkers(
+                embedded ? cmd + Worker.INLINE_REDUCE_SUFFIX : cmd, data, jobId);
+        String finalResponse;
+        Gson gson = new Gson();
 
+        if ("ADD_STORE".equalsIgnoreCase(cmd) || "REMOVE_STORE".equalsIgnoreCase(cmd)) {
+            finalResponse = responses.isEmpty() ? "[]" : responses.get(0);
+
+        } else if (embedded) {
+            finalResponse = reduceInProcess(cmd, responses, gson);
+        } else if (needsReduce) {
+            String failed = allFailed(responses);
+            if (failed == null) {
+                failed = reducersUnreachable(responses);
+            }
+            if (failed != null) {
+                // no worker delivered a mapping, or some reducer will never have them all
+                PendingReduces.cancel(cmd, jobId);
+                finalResponse = failed;
             } else {
-                Set<String> reduces = Set.of(
-                        "SEARCH", "AGGREGATE_SALES_BY_PRODUCT_NAME",
-                        "LIST_STORES", "DELETED_PRODUCTS"
-                );
-                if (reduces.contains(cmd.toUpperCase())) {
-                    String key = cmd + "|" + jobId;
-                    synchronized (MasterServer.reduceLock) {
-                        while (!MasterServer.pendingReduceResults.containsKey(key)) {
-                            try {
-                                MasterServer.reduceLock.wait(1000);
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                                out.println("{\"error\":\"Interrupted while waiting for reduce result.\"}");
-                                return;
-                            }
-                        }
-                        finalResponse = MasterServer.pendingReduceResults.remove(key);
-                    }
-                } else {
-                    finalResponse = gson.toJson(responses);
-                }
+                // if some workers failed, the reducer completes at its deadline
+                // with the partials it has and lists the missing workers
+                finalResponse = PendingReduces.await(cmd, jobId, reduceResult);
             }
+        } else {
+            finalResponse = gson.toJson(responses);
+        }
 
-            out.println(finalResponse);
+        return finalResponse;
+    }
 
-            // On ADD/REMOVE store, update dynamics and reload
-            if ("ADD_STORE".equalsIgnoreCase(cmd) || "REMOVE_STORE".equalsIgnoreCase(cmd)) {
-                if ("ADD_STORE".equalsIgnoreCase(cmd)) {
-                    Store s = gson.fromJson(data, Store.class);
-                    MasterServer.dynamicStores.add(s);
-                } else {
-                    String finalData = data;
-                    MasterServer.dynamicStores.removeIf(s -> s.getStoreName().equals(finalData.trim()));
-                    MasterServer.dynamicRemoves.add(data.trim());
-                }
-                MasterServer.broadcastReload();
+    /**
+     * Work done once the client has its answer: on ADD/REMOVE store, update the
+     * Master's dynamic store list and make every worker reload.
+     */
+    static void afterResponse(String cmd, String data) {
+        // On ADD/REMOVE store, update dynamics and reload
+        if ("ADD_STORE".equalsIgnoreCase(cmd) || "REMOVE_STORE".equalsIgnoreCase(cmd)) {
+            if ("ADD_STORE".equalsIgnoreCase(cmd)) {
+                Store s = new Gson().fromJson(data, Store.class);
+                MasterServer.dynamicStores.add(s);
+            } else {
+                String finalData = data;
+                MasterServer.dynamicStores.removeIf(s -> s.getStoreName().equals(finalData.trim()));
+                MasterServer.dynamicRemoves.add(data.trim());
             }
+            MasterServer.broadcastReload();
+        }
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try { clientSocket.close(); } catch (IOException ignored) {}
+    /**
+     * Embedded reduce: each worker response is its JSON mapping list, which is
+     * reduced here exactly as the Reduce server would. Like the Reduce server
+     * at its deadline, workers that failed are left out and listed under
+     * {@link ReduceHandler#MISSING_WORKERS}; responses are in worker id order.
+     */
+    private static String reduceInProcess(String cmd, List<String> responses, Gson gson) {
+        String failed = allFailed(responses);
+        if (failed != null) {
+            return failed;
+        }
+        Type listType = new TypeToken<List<MapReduceFramework.Pair<String, String>>>(){}.getType();
+        List<List<MapReduceFramework.Pair<String, String>>> partials = new ArrayList<>();
+        JsonArray missing = new JsonArray();
+        for (int id = 0; id < responses.size(); id++) {
+            String r = responses.get(id);
+            if (isError(r)) {
+                missing.add(id);
+                continue;
+            }
+            try {
+                partials.add(gson.fromJson(r, listType));
+            } catch (JsonSyntaxException e) {
+                return "{\"error\":\"Malformed mapping from worker.\"}";
+            }
+        }
+        String result = ReduceHandler.reduce(cmd, partials);
+        if (missing.isEmpty()) {
+            return result;
+        }
+        JsonObject withMissing = JsonParser.parseString(result).getAsJsonObject();
+        withMissing.add(ReduceHandler.MISSING_WORKERS, missing);
+        return withMissing.toString();
+    }
+
+    /** Returns the first error if every worker response reports one, otherwise null. */
+    private static String allFailed(List<String> responses) {
+        for (String r : responses) {
+            if (!isError(r)) {
+                return null;
+            }
+        }
+        return responses.isEmpty() || responses.get(0) == null
+                ? "{\"error\":\"No response\"}" : responses.get(0);
+    }
+
+    /**
+     * Returns the first worker error reporting reducers it could not reach,
+     * otherwise null. Those reducers' results would never be complete.
+     */
+    private static String reducersUnreachable(List<String> responses) {
+        for (String r : responses) {
+            if (isError(r) && r != null && r.contains("\"" + ReduceHandler.UNREACHABLE_REDUCERS + "\"")) {
+                return r;
+            }
         }
+        return null;
     }
 
-    private List<String> forwardToWorkers(String cmd, String data, String jobId) {
+    private static boolean isError(String response) {
+        return response == null || response.startsWith("{\"error\"");
+    }
+
+    private static List<String> forwardToWorkers(String cmd, String data, String jobId) {
         List<String> res = new ArrayList<>();
         Set<String> directed = Set.of(
                 "ADD_PRODUCT","REMOVE_PRODUCT",
                 "UPDATE_PRODUCT_AMOUNT","INCREMENT_PRODUCT_AMOUNT",
-                "DECREMENT_PRODUCT_AMOUNT","PURCHASE_PRODUCT","REVIEW","STORE_DETAILS","GET_STOCK","GET_LOGO"
+                "DECREMENT_PRODUCT_AMOUNT","PURCHASE_PRODUCT","PURCHASE_CART","REVIEW","STORE_DETAILS","GET_STOCK","GET_LOGO"
         );
 
         if (directed.contains(cmd.toUpperCase())) {
@@ -136,14 +248,24 @@ public class ActionForClients implements Runnable {
                     }
                 }
             }
-            int wc = MasterServer.workerHostsById.size();
-            int primary = Math.abs(store.hashCode()) % wc;
-            String r = sendToWorker(primary, cmd, data, jobId);
+            // the store's owner on the ring, then the next node as its replica
+            List<Integer> owners = new ArrayList<>();
+            for (String node : MasterServer.ring.ownersOf(store, 2)) {
+                int id = MasterServer.workerIdOf(node);
+                if (id >= 0) owners.add(id);
+            }
+            if (owners.isEmpty()) {
+                // membership changed under us; any live worker will answer
+                owners.addAll(new ArrayList<>(MasterServer.workerHostsById.keySet()));
+                if (owners.isEmpty()) {
+                    res.add("{\"error\":\"No worker available.\"}");
+                    return res;
+                }
+            }
+            String r = sendToWorker(owners.get(0), cmd, data, jobId);
             res.add(r);
-            if (wc > 1 && r.startsWith("{\"error\"")) {
-                List<Integer> reps = new ArrayList<>();
-                for (int i=1; i<2; i++) reps.add((primary+i)%wc);
-                MasterServer.broadcastToReplicas(reps, cmd + "|" + data + "|" + jobId);
+            if (owners.size() > 1 && r.startsWith("{\"error\"")) {
+                MasterServer.broadcastToReplicas(owners.subList(1, owners.size()), cmd, data, jobId);
             }
 
         } else {
@@ -158,35 +280,69 @@ public class ActionForClients implements Runnable {
                     }
                 }
             }
-            for (var id : MasterServer.workerHostsById.keySet()) {
-                res.add(sendToWorker(id, cmd, data, jobId));
+            // scatter to every worker at once, then gather against one deadline so
+            // latency follows the slowest worker rather than the sum of all of them
+            List<CompletableFuture<String>> pending = new ArrayList<>();
+            // ascending ids, so the reducer can tell which worker a response came from
+            for (var id : new TreeSet<>(MasterServer.workerHostsById.keySet())) {
+                pending.add(sendToWorkerAsync(id, cmd, data, jobId));
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GATHER_DEADLINE_MS);
+            for (CompletableFuture<String> f : pending) {
+                res.add(awaitResponse(f, deadline));
             }
         }
         return res;
     }
 
-    private String sendToWorker(int id, String cmd, String data, String jobId) {
+    private static String sendToWorker(int id, String cmd, String data, String jobId) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GATHER_DEADLINE_MS);
+        return awaitResponse(sendToWorkerAsync(id, cmd, data, jobId), deadline);
+    }
+
+    /**
+     * Sends a command over the worker's persistent channel. The returned future
+     * never fails; errors are mapped to the JSON error strings sent to clients.
+     */
+    private static CompletableFuture<String> sendToWorkerAsync(int id, String cmd, String data, String jobId) {
         String h = MasterServer.workerHostsById.get(id);
-        int    p = MasterServer.workerPortsById.get(id);
-        try (Socket s = new Socket(h, p);
-             PrintWriter o = new PrintWriter(s.getOutputStream(), true);
-             BufferedReader i = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
-            o.println(cmd);
-            o.println(data);
-            o.println(jobId);
-            String line;
-            while ((line = i.readLine()) != null) {
+        Integer p = MasterServer.workerPortsById.get(id);
+        if (h == null || p == null) {
+            return CompletableFuture.completedFuture("{\"error\":\"Worker comms failed\"}");
+        }
+        try {
+            return WorkerChannel.forWorker(h, p).send(cmd, data, jobId).handle((line, ex) -> {
+                if (ex != null) {
+                    return ex instanceof TimeoutException || ex.getCause() instanceof TimeoutException
+                            ? "{\"error\":\"No response\"}"
+                            : "{\"error\":\"Worker comms failed\"}";
+                }
                 if (line.startsWith("CMD_RESPONSE:")) {
                     return line.substring("CMD_RESPONSE:".length());
                 }
-            }
+                return "{\"error\":\"No response\"}";
+            });
         } catch (IOException e) {
+            return CompletableFuture.completedFuture("{\"error\":\"Worker comms failed\"}");
+        }
+    }
+
+    /** Waits for a worker response until the shared deadline of the request. */
+    private static String awaitResponse(CompletableFuture<String> f, long deadlineNanos) {
+        try {
+            long left = Math.max(0, deadlineNanos - System.nanoTime());
+            return f.get(left, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return "{\"error\":\"No response\"}";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "{\"error\":\"Interrupted while waiting for workers.\"}";
+        } catch (ExecutionException e) {
             return "{\"error\":\"Worker comms failed\"}";
         }
-        return "{\"error\":\"No response\"}";
     }
 
-    private String extractStoreName(String cmd, String data) {
+    private static String extractStoreName(String cmd, String data) {
         if ("ADD_STORE".equalsIgnoreCase(cmd)) {
             try {
                 return new Gson().fromJson(data, Store.class).getStoreName();
@@ -0,0 +1,171 @@
+package Master;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Consistent-hash ring that places stores on workers.
+ * <p>
+ * Every worker is a node, named by its stable {@code host:port}, and appears
+ * on the ring at {@link #vnodes()} pseudo-random points. A store belongs to the
+ * node owning the first point at or after the store name's hash, wrapping
+ * around. When a node joins or leaves, only the stores on the arcs it gains or
+ * loses move, about 1/N of them, and virtual nodes keep the arcs even.
+ * <p>
+ * The Master owns the ring and pushes it to the workers as a {@link #toSpec()
+ * spec}; both sides build identical rings from it. Instances are immutable.
+ */
+public final class HashRing {
+    /** Default number of virtual nodes per worker, {@code -Dfreefood.ring.vnodes=N}. */
+    public static final int DEFAULT_VNODES = Integer.getInteger("freefood.ring.vnodes", 128);
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    });
+
+    private final int vnodes;
+    private final List<String> nodes;
+    /** Ring points in ascending order and the node owning each of them. */
+    private final long[] points;
+    private final String[] owners;
+
+    private HashRing(Collection<String> nodes, int vnodes) {
+        if (vnodes <= 0) {
+            throw new IllegalArgumentException("vnodes must be positive: " + vnodes);
+        }
+        this.vnodes = vnodes;
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+
+        int n = this.nodes.size() * vnodes;
+        long[][] entries = new long[n][];
+        int k = 0;
+        for (int i = 0; i < this.nodes.size(); i++) {
+            for (int v = 0; v < vnodes; v++) {
+                entries[k++] = new long[]{hash(this.nodes.get(i) + "#" + v), i};
+            }
+        }
+        // ties (practically impossible with 64 bits) go to the smaller node name
+        Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        this.points = new long[n];
+        this.owners = new String[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = entries[i][0];
+            owners[i] = this.nodes.get((int) entries[i][1]);
+        }
+    }
+
+    /** Builds a ring with {@link #DEFAULT_VNODES} virtual nodes per node. */
+    public static HashRing of(Collection<String> nodes) {
+        return new HashRing(nodes, DEFAULT_VNODES);
+    }
+
+    public static HashRing of(Collection<String> nodes, int vnodes) {
+        return new HashRing(nodes, vnodes);
+    }
+
+    /** The same ring with one node taken out, e.g. the ring before that node joined. */
+    public HashRing without(String node) {
+        List<String> rest = new ArrayList<>(nodes);
+        rest.remove(node);
+        return new HashRing(rest, vnodes);
+    }
+
+    /** The node names, sorted. */
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    public int vnodes() {
+        return vnodes;
+    }
+
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * Returns the node owning a key.
+     *
+     * @param key e.g. a store name
+     * @return the owning node, or null if the ring is empty
+     */
+    public String ownerOf(String key) {
+        if (points.length == 0) return null;
+        return owners[firstPointAtOrAfter(hash(key))];
+    }
+
+    /**
+     * Returns up to {@code count} distinct nodes for a key, in ring order: the
+     * owner first, then the nodes that would take over from it (replicas).
+     */
+    public List<String> ownersOf(String key, int count) {
+        List<String> result = new ArrayList<>(Math.min(count, nodes.size()));
+        if (points.length == 0) return result;
+        int start = firstPointAtOrAfter(hash(key));
+        for (int i = 0; i < points.length && result.size() < count; i++) {
+            String owner = owners[(start + i) % points.length];
+            if (!result.contains(owner)) {
+                result.add(owner);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encodes the ring as {@code vnodes;node,node,...}, which is all
+     * {@link #fromSpec} needs to rebuild it.
+     */
+    public String toSpec() {
+        return vnodes + ";" + String.join(",", nodes);
+    }
+
+    /**
+     * Rebuilds a ring from {@link #toSpec()}.
+     *
+     * @throws IllegalArgumentException if the spec is malformed
+     */
+    public static HashRing fromSpec(String spec) {
+        int semi = spec.indexOf(';');
+        if (semi < 0) {
+            throw new IllegalArgumentException("Bad ring spec: " + spec);
+        }
+        int vnodes = Integer.parseInt(spec.substring(0, semi).trim());
+        List<String> nodes = new ArrayList<>();
+        for (String node : spec.substring(semi + 1).split(",")) {
+            if (!node.isBlank()) nodes.add(node.trim());
+        }
+        return new HashRing(nodes, vnodes);
+    }
+
+    @Override
+    public String toString() {
+        return "HashRing" + nodes + "x" + vnodes;
+    }
+
+    /** First 64 bits of the key's MD5 digest. */
+    static long hash(String key) {
+        byte[] d = MD5.get().digest(key.getBytes(StandardCharsets.UTF_8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (d[i] & 0xFF);
+        }
+        return h;
+    }
+
+    private int firstPointAtOrAfter(long h) {
+        int i = Arrays.binarySearch(points, h);
+        if (i < 0) i = -i - 1;
+        return i == points.length ? 0 : i;
+    }
+}
@@ -0,0 +1,383 @@
+package Master;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import protocol.WireProtocol;
+
+/**
+ * Non-blocking front end for the Master.
+ * <p>
+ * A single selector thread accepts connections and reads each request's line
+ * framing without ever blocking on a slow or idle client. Once all lines of a
+ * request have arrived, the channel is switched back to blocking mode and the
+ * request is handed to {@link MasterServer#handleRequest}. Connections that
+ * open with the binary wire preamble (see {@link WireProtocol}) stay on the
+ * selector, which reads their frames too:
+ * <ul>
+ *   <li>client commands run on the client pool (they may wait on workers and reducers),</li>
+ *   <li>binary connections are persistent, but only a complete request frame takes a
+ *       client pool thread, and a connection's requests run one at a time, in order,</li>
+ *   <li>REGISTER, LOGIN, worker membership and REDUCE_RESULT run on a separate control
+ *       pool, so a reduce result can never queue behind the clients that are waiting for it.</li>
+ * </ul>
+ */
+public class MasterFrontEnd implements Runnable {
+    /** Upper bound for one buffered request, protects against runaway clients. */
+    private static final int MAX_REQUEST_BYTES = 16 * 1024 * 1024;
+
+    private final int port;
+    private final ExecutorService clientPool;
+    private final ExecutorService controlPool;
+
+    public MasterFrontEnd(int port) {
+        this(port, Integer.getInteger("freefood.master.threads", 64));
+    }
+
+    public MasterFrontEnd(int port, int clientThreads) {
+        this.port = port;
+        this.clientPool  = Executors.newFixedThreadPool(clientThreads, named("master-client"));
+        this.controlPool = Executors.newCachedThreadPool(named("master-control"));
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Master listening on " + port + " (nio)");
+
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(server, selector);
+                        } else if (key.isReadable()) {
+                            read(key, selector);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Front end I/O error: " + e.getMessage());
+                        closeQuietly(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept(ServerSocketChannel server, Selector selector) throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) return;
+        ch.configureBlocking(false);
+        ch.register(selector, SelectionKey.OP_READ, new PendingRequest());
+    }
+
+    private void read(SelectionKey key, Selector selector) throws IOException {
+        SocketChannel ch = (SocketChannel) key.channel();
+        if (key.attachment() instanceof BinaryConnection) {
+            ((BinaryConnection) key.attachment()).read(key);
+            return;
+        }
+        PendingRequest req = (PendingRequest) key.attachment();
+
+        int n = ch.read(req.buffer);
+        if (n < 0) {
+            // client went away before finishing its request
+            closeQuietly(key);
+            return;
+        }
+        req.buffer.flip();
+        if (req.bytes.size() == 0 && req.buffer.hasRemaining()
+                && req.buffer.get(req.buffer.position()) == WireProtocol.MAGIC_0) {
+            BinaryConnection conn = new BinaryConnection(ch);
+            key.attach(conn);
+            conn.received(key, req.buffer);
+            return;
+        }
+        while (req.buffer.hasRemaining()) {
+            byte b = req.buffer.get();
+            req.bytes.write(b);
+            if (b == '\n') {
+                req.onLineEnd();
+            }
+        }
+        req.buffer.clear();
+
+        if (req.bytes.size() > MAX_REQUEST_BYTES) {
+            System.err.println("Dropping oversized request from " + ch.getRemoteAddress());
+            closeQuietly(key);
+            return;
+        }
+        if (req.isComplete()) {
+            dispatch(key, selector, req);
+        }
+    }
+
+    /**
+     * Leaves the selector and runs the complete request on the matching pool.
+     */
+    private void dispatch(SelectionKey key, Selector selector, PendingRequest req) throws IOException {
+        SocketChannel ch = (SocketChannel) key.channel();
+        key.cancel();
+        selector.selectNow();           // flush the cancelled key before changing mode
+        ch.configureBlocking(true);
+
+        Socket sock = ch.socket();
+        byte[] raw = req.bytes.toByteArray();
+        // replay everything we buffered, then continue with the live stream
+        InputStream replay = new SequenceInputStream(
+                new ByteArrayInputStream(raw), sock.getInputStream());
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(replay));
+        String first = in.readLine();
+        PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
+
+        ExecutorService pool = isControl(first) ? controlPool : clientPool;
+        pool.execute(() -> {
+            try {
+                MasterServer.handleRequest(sock, first, in, out, Runnable::run);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error handling " + first + ": " + e.getMessage());
+                try { sock.close(); } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    /** Number of lines that make up a request starting with the given command. */
+    static int linesFor(String command) {
+        if (command == null) return 1;
+        if (command.startsWith("WORKER_SHUTDOWN:")) return 1;
+        if ("REDUCE_RESULT".equals(command)) return 4;
+        // REGISTER, LOGIN, WORKER_HANDSHAKE and every client command: command + data
+        return 2;
+    }
+
+    private static boolean isControl(String command) {
+        return command == null
+                || "REGISTER".equalsIgnoreCase(command)
+                || "LOGIN".equalsIgnoreCase(command)
+                || "WORKER_HANDSHAKE".equals(command)
+                || "REDUCE_RESULT".equals(command)
+                || command.startsWith("WORKER_SHUTDOWN:");
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try { key.channel().close(); } catch (IOException ignored) {}
+    }
+
+    private static java.util.concurrent.ThreadFactory named(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /** Bytes received so far for one connection and how many lines they hold. */
+    private static class PendingRequest {
+        final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int lines = 0;
+        int expectedLines = -1;
+
+        void onLineEnd() {
+            lines++;
+            if (lines == 1) {
+                String first = new String(bytes.toByteArray()).trim();
+                expectedLines = linesFor(first);
+            }
+        }
+
+        boolean isComplete() {
+            return expectedLines > 0 && lines >= expectedLines;
+        }
+    }
+
+    /**
+     * A binary client connection. The selector reads its preamble and frames;
+     * each complete request frame is queued, and the connection's queue is
+     * drained on the client pool, one request at a time, so that an idle
+     * connection holds no thread and replies come back in request order.
+     */
+    private final class BinaryConnection {
+        private final SocketChannel ch;
+        /** Bytes received and not yet decoded, in write mode. */
+        private ByteBuffer in = ByteBuffer.allocate(8192);
+        private boolean preambleDone;
+
+        /* guarded by this */
+        private final Queue<WireProtocol.Frame> requests = new ArrayDeque<>();
+        private boolean draining;
+        private boolean closing;
+
+        BinaryConnection(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        /** Reads what the client has sent, on the selector thread. */
+        void read(SelectionKey key) throws IOException {
+            if (!in.hasRemaining()) {
+                in = grow(in, in.capacity() * 2);
+            }
+            if (ch.read(in) < 0) {
+                key.cancel();
+                synchronized (this) {
+                    closing = true;
+                    if (draining) return;       // closed once the last reply is out
+                }
+                ch.close();
+                return;
+            }
+            decode(key);
+        }
+
+        /** Takes over bytes the selector read before it knew the connection was binary. */
+        void received(SelectionKey key, ByteBuffer bytes) throws IOException {
+            if (in.remaining() < bytes.remaining()) {
+                in = grow(in, in.position() + bytes.remaining());
+            }
+            in.put(bytes);
+            decode(key);
+        }
+
+        private void decode(SelectionKey key) throws IOException {
+            in.flip();
+            try {
+                if (!preambleDone) {
+                    if (in.remaining() < 4) return;
+                    byte[] preamble = new byte[4];
+                    in.get(preamble);
+                    ByteArrayOutputStream ours = new ByteArrayOutputStream(4);
+                    WireProtocol.acceptPreamble(
+                            new DataInputStream(new ByteArrayInputStream(preamble)), ours);
+                    write(ByteBuffer.wrap(ours.toByteArray()));
+                    preambleDone = true;
+                }
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < 0 || length > WireProtocol.MAX_FRAME_BYTES) {
+                        throw new IOException("Bad frame length " + length);
+                    }
+                    if (in.remaining() < 4 + length) {
+                        if (in.capacity() < 4 + length) {
+                            in.compact();
+                            in = grow(in, 4 + length);
+                            in.flip();
+                        }
+                        return;
+                    }
+                    byte[] frame = new byte[4 + length];
+                    in.get(frame);
+                    enqueue(WireProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(frame))));
+                }
+            } catch (IOException e) {
+                key.cancel();
+                throw e;
+            } finally {
+                in.compact();
+            }
+        }
+
+        private synchronized void enqueue(WireProtocol.Frame request) {
+            requests.add(request);
+            if (!draining) {
+                draining = true;
+                clientPool.execute(this::drain);
+            }
+        }
+
+        /** Answers the queued requests in order, on a client pool thread. */
+        private void drain() {
+            while (true) {
+                WireProtocol.Frame req;
+                synchronized (this) {
+                    req = requests.poll();
+                    if (req == null) {
+                        draining = false;
+                        if (!closing) return;
+                    }
+                }
+                if (req == null) {
+                    closeQuietly();
+                    return;
+                }
+                String cmd  = req.getCommand();
+                String data = req.getPayload();
+                String reply;
+                try {
+                    reply = MasterServer.binaryReply(cmd, data);
+                } catch (RuntimeException e) {
+                    reply = "{\"error\":\"" + e.getClass().getSimpleName() + "\"}";
+                }
+                try {
+                    ByteArrayOutputStream frame = new ByteArrayOutputStream(reply.length() + 64);
+                    WireProtocol.writeFrame(new DataOutputStream(frame),
+                            new WireProtocol.Frame(WireProtocol.RESPONSE, req.getJobId(), reply));
+                    write(ByteBuffer.wrap(frame.toByteArray()));
+                } catch (IOException e) {
+                    System.err.println("Binary client error: " + e.getMessage());
+                    synchronized (this) {
+                        requests.clear();
+                        draining = false;
+                    }
+                    closeQuietly();
+                    return;
+                }
+                ActionForClients.afterResponse(cmd, data);
+            }
+        }
+
+        /**
+         * Writes all of {@code buf} to the non-blocking channel, waiting for
+         * room on a private selector when the socket buffer is full.
+         */
+        private void write(ByteBuffer buf) throws IOException {
+            synchronized (ch) {
+                Selector waiter = null;
+                try {
+                    while (buf.hasRemaining()) {
+                        if (ch.write(buf) > 0) continue;
+                        if (waiter == null) {
+                            waiter = Selector.open();
+                            ch.register(waiter, SelectionKey.OP_WRITE);
+                        }
+                        waiter.select(1_000);
+                    }
+                } finally {
+                    if (waiter != null) waiter.close();
+                }
+            }
+        }
+
+        private void closeQuietly() {
+            try { ch.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /** A copy of {@code buf} (in write mode) with room for at least {@code capacity} bytes. */
+    private static ByteBuffer grow(ByteBuffer buf, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(capacity, buf.capacity()));
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+}
@@ -6,9 +6,11 @@ import java.lang.reflect.Type;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 import com.google.gson.Gson;
 import model.Store;
+import protocol.WireProtocol;
 
 public class MasterServer {
     private static final int MASTER_PORT = 12345;
@@ -57,6 +59,12 @@ public class MasterServer {
     public static final Map<Integer,Integer> workerPortsById =
             Collections.synchronizedMap(new HashMap<>());
 
+    /**
+     * Placement of stores on workers, over the workers' {@code host:port}
+     * names; rebuilt on every membership change and pushed with RELOAD.
+     */
+    public static volatile HashRing ring = HashRing.of(Collections.emptyList());
+
     private static int workerCount = 0;
     public static final Object workerAvailable = new Object();
     public static final List<Store> dynamicStores =
@@ -64,11 +72,21 @@ public class MasterServer {
     public static final Set<String> dynamicRemoves =
             Collections.synchronizedSet(new HashSet<>());
 
-    public static final Map<String,String> pendingReduceResults =
-            Collections.synchronizedMap(new HashMap<>());
-    public static final Object reduceLock = new Object();
 
     public static void main(String[] args) {
+        if (Boolean.getBoolean("freefood.master.blocking")) {
+            runBlockingAcceptLoop();
+        } else {
+            new MasterFrontEnd(MASTER_PORT).run();
+        }
+    }
+
+    /**
+     * Original front end: one blocking accept thread that reads the first line
+     * of every connection itself before dispatching it. Kept for debugging with
+     * -Dfreefood.master.blocking=true.
+     */
+    private static void runBlockingAcceptLoop() {
         try (ServerSocket server = new ServerSocket(MASTER_PORT)) {
             System.out.println("Master listening on " + MASTER_PORT);
             while (true) {
@@ -78,232 +96,304 @@ public class MasterServer {
                 sock.setSoTimeout(1000);
 
                 String line = in.readLine();
-                if ("REGISTER".equalsIgnoreCase(line)) {
-                    try {
-                        String data = in.readLine(); // Potential IOException or null return
-
-                        if (data == null) {
-                            if (out != null) {
-                                out.println("ERROR:NO_DATA_FOR_REGISTER");
-                            }
-                            System.err.println("REGISTER: No data received after REGISTER command.");
-                        } else {
-                            String[] parts = data.split("\\|", -1); // Split by pipe, -1 preserves trailing empty strings
-                            String user = null;
-                            String pass = null;
-
-                            if (parts.length == 2) { // Expected format: "username|password"
-                                user = parts[0];
-                                pass = parts[1];
-                            } else if (parts.length >= 3) { // Expected format: "ignored_prefix|username|password" (or more parts, we only care about user/pass)
-                                user = parts[1];
-                                pass = parts[2];
-                            } else {
-                                // Invalid format (e.g., "username_only", "", or less than 2 parts)
-                                if (out != null) {
-                                    out.println("ERROR:INVALID_REGISTER_FORMAT");
-                                }
-                                System.err.println("REGISTER: Invalid data format (expected 2 or >=3 parts): " + data);
-                            }
-
-                            // Proceed only if user and pass were successfully parsed
-                            if (user != null && pass != null) {
-                                // Optional: Add validation for empty username if required
-                                if (user.isEmpty()) {
-                                    if (out != null) out.println("ERROR:USERNAME_CANNOT_BE_EMPTY");
-                                    System.err.println("REGISTER: Username was empty. Data: " + data);
-                                } else if (userCredentials.containsKey(user)) {
-                                    if (out != null) {
-                                        out.println("ERROR:USER_EXISTS");
-                                    }
-                                } else {
-                                    userCredentials.put(user, pass);
-                                    saveCredentials(); // Potential IOException or other errors during save
-                                    if (out != null) {
-                                        out.println("REGISTER_SUCCESS");
-                                    }
-                                }
-                            }
-                        }
-                    } catch (Exception e) { // Catches IOException, NullPointerException, ArrayIndexOutOfBoundsException, etc.
-                        System.err.println("Error during REGISTER processing: " + e.getMessage());
-                        // e.printStackTrace(); // Uncomment for detailed stack trace during debugging
-                        if (out != null) {
-                            out.println("ERROR:SERVER_ERROR_DURING_REGISTER");
-                        }
-                    } finally {
-                        try {
-                            if (sock != null && !sock.isClosed()) {
-                                sock.close();
-                            }
-                        } catch (IOException ex) {
-                            System.err.println("IOException while closing socket after REGISTER: " + ex.getMessage());
-                        }
-                    }
-                    continue; // Continue to the next iteration of the server loop
-                }
+                handleRequest(sock, line, in, out, r -> new Thread(r).start());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-// --- handle LOGIN ---
-                if ("LOGIN".equalsIgnoreCase(line)) {
-                    try {
-                        String data = in.readLine(); // Potential IOException or null return
-
-                        if (data == null) {
-                            if (out != null) {
-                                out.println("ERROR:NO_DATA_FOR_LOGIN");
-                            }
-                            System.err.println("LOGIN: No data received after LOGIN command.");
-                        } else {
-                            String[] parts = data.split("\\|", -1); // Split by pipe, -1 preserves trailing empty strings
-                            String user = null;
-                            String pass = null;
-
-                            if (parts.length == 2) { // Expected format: "username|password"
-                                user = parts[0];
-                                pass = parts[1];
-                            } else if (parts.length >= 3) { // Expected format: "ignored_prefix|username|password" (or more)
-                                user = parts[1];
-                                pass = parts[2];
-                            } else {
-                                // Invalid format
-                                if (out != null) {
-                                    out.println("ERROR:INVALID_LOGIN_FORMAT");
-                                }
-                                System.err.println("LOGIN: Invalid data format (expected 2 or >=3 parts): " + data);
-                            }
-
-                            // Proceed only if user and pass were successfully parsed
-                            if (user != null && pass != null) {
-                                // Optional: Add validation for empty username if required for login
-                                if (user.isEmpty()) {
-                                    if (out != null) out.println("ERROR:USERNAME_CANNOT_BE_EMPTY_FOR_LOGIN");
-                                    System.err.println("LOGIN: Username was empty. Data: " + data);
-                                } else if (!userCredentials.containsKey(user) ||
-                                        !userCredentials.get(user).equals(pass)) {
-                                    if (out != null) {
-                                        out.println("ERROR:INVALID_CREDENTIALS");
-                                    }
-                                } else {
-                                    String token = UUID.randomUUID().toString();
-                                    userSessions.put(token, user);
-                                    if (out != null) {
-                                        out.println("LOGIN_SUCCESS|" + token);
-                                    }
-                                }
-                            }
-                        }
-                    } catch (Exception e) { // Catches IOException, NullPointerException, ArrayIndexOutOfBoundsException, etc.
-                        System.err.println("Error during LOGIN processing: " + e.getMessage());
-                        // e.printStackTrace(); // Uncomment for detailed stack trace during debugging
-                        if (out != null) {
-                            out.println("ERROR:SERVER_ERROR_DURING_LOGIN");
-                        }
-                    } finally {
-                        try {
-                            if (sock != null && !sock.isClosed()) {
-                                sock.close();
-                            }
-                        } catch (IOException ex) {
-                            System.err.println("IOException while closing socket after LOGIN: " + ex.getMessage());
-                        }
+    /**
+     * Handles one framed request whose first line has already been read.
+     * REGISTER, LOGIN, worker membership and REDUCE_RESULT messages are served
+     * directly; everything else is a client command run by {@link ActionForClients}.
+     *
+     * @param sock           the client connection (in blocking mode)
+     * @param line           the first line (command) of the request
+     * @param in             reader positioned after the first line
+     * @param out            writer to the client
+     * @param clientExecutor where client commands are executed
+     * @throws IOException if the connection fails
+     */
+    static void handleRequest(Socket sock, String line, BufferedReader in, PrintWriter out,
+                              Executor clientExecutor) throws IOException {
+        if ("REGISTER".equalsIgnoreCase(line)) {
+            try {
+                String data = in.readLine(); // Potential IOException or null return
+                out.println(register(data));
+            } catch (Exception e) { // Catches IOException, NullPointerException, ArrayIndexOutOfBoundsException, etc.
+                System.err.println("Error during REGISTER processing: " + e.getMessage());
+                out.println("ERROR:SERVER_ERROR_DURING_REGISTER");
+            } finally {
+                try {
+                    if (sock != null && !sock.isClosed()) {
+                        sock.close();
                     }
-                    continue; // Continue to the next iteration of the server loop
+                } catch (IOException ex) {
+                    System.err.println("IOException while closing socket after REGISTER: " + ex.getMessage());
                 }
-                if ("WORKER_HANDSHAKE".equals(line)) {
-                    int wp = Integer.parseInt(in.readLine().trim());
-                    int id;
-                    synchronized (MasterServer.class) { id = workerCount++; }
-                    out.println("WORKER_ASSIGN:" + id + ":" + workerCount);
-
-                    // replay dynamic store adds
-                    Gson gson = new Gson();
-                    synchronized (dynamicStores) {
-                        for (Store s : dynamicStores) {
-                            String jobId = ActionForClients.generateJobId();
-                            out.println("ADD_STORE(REPLAY)");
-                            out.println(gson.toJson(s));
-                            out.println(jobId);
-                        }
-                    }
-                    synchronized (dynamicRemoves) {
-                        for (String name : dynamicRemoves) {
-                            String jobId = ActionForClients.generateJobId();
-                            out.println("REMOVE_STORE(REPLAY)");
-                            out.println(name);
-                            out.println(jobId);
-                        }
-                    }
+            }
+            return; // Done with this connection
+        }
 
-                    String host = sock.getInetAddress().getHostAddress();
-                    workerHostsById.put(id, host);
-                    workerPortsById.put(id, wp);
-                    synchronized (workerAvailable){
-                        workerAvailable.notifyAll();
+        // --- handle LOGIN ---
+        if ("LOGIN".equalsIgnoreCase(line)) {
+            try {
+                String data = in.readLine(); // Potential IOException or null return
+                out.println(login(data));
+            } catch (Exception e) { // Catches IOException, NullPointerException, ArrayIndexOutOfBoundsException, etc.
+                System.err.println("Error during LOGIN processing: " + e.getMessage());
+                out.println("ERROR:SERVER_ERROR_DURING_LOGIN");
+            } finally {
+                try {
+                    if (sock != null && !sock.isClosed()) {
+                        sock.close();
                     }
-                    sock.close();
-                    broadcastReload();
-                    System.out.printf("Worker %d @ %s:%d registered%n", id, host, wp);
-
-                } else if (line != null && line.startsWith("WORKER_SHUTDOWN:")) {
-                    int rem = Integer.parseInt(line.split(":")[1].trim());
-                    synchronized (MasterServer.class) { workerCount--; }
-                    workerHostsById.remove(rem);
-                    workerPortsById.remove(rem);
-                    synchronized (workerAvailable) {
-                        shiftWorkerIdsDown(rem);
-                        workerAvailable.notifyAll();
-                        broadcastReload();
-                    }
-                    sock.close();
-
-                } else if ("REDUCE_RESULT".equals(line)) {
-                    String jobId = in.readLine();
-                    String cmd   = in.readLine();
-                    String agg   = in.readLine();
-                    synchronized (reduceLock) {
-                        pendingReduceResults.put(cmd + "|" + jobId, agg);
-                        reduceLock.notifyAll();
-                    }
-                    out.println("ACK");
-                    sock.close();
+                } catch (IOException ex) {
+                    System.err.println("IOException while closing socket after LOGIN: " + ex.getMessage());
+                }
+            }
+            return; // Done with this connection
+        }
+        if ("WORKER_HANDSHAKE".equals(line)) {
+            int wp = Integer.parseInt(in.readLine().trim());
+            int id;
+            synchronized (MasterServer.class) { id = workerCount++; }
+            String host = sock.getInetAddress().getHostAddress();
+            String node = nodeName(host, wp);
+            out.println("WORKER_ASSIGN:" + id + ":" + workerCount);
+            // the ring as it will be once this worker has joined, so the worker
+            // loads the right stores before the first RELOAD reaches it
+            List<String> nodes = new ArrayList<>(ring.nodes());
+            nodes.add(node);
+            out.println("RING");
+            out.println(node);
+            out.println(HashRing.of(nodes).toSpec());
 
-                } else {
-                    new Thread(new ActionForClients(sock, line, in)).start();
+            // replay dynamic store adds
+            Gson gson = new Gson();
+            synchronized (dynamicStores) {
+                for (Store s : dynamicStores) {
+                    String jobId = ActionForClients.generateJobId();
+                    out.println("ADD_STORE(REPLAY)");
+                    out.println(gson.toJson(s));
+                    out.println(jobId);
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            synchronized (dynamicRemoves) {
+                for (String name : dynamicRemoves) {
+                    String jobId = ActionForClients.generateJobId();
+                    out.println("REMOVE_STORE(REPLAY)");
+                    out.println(name);
+                    out.println(jobId);
+                }
+            }
+
+            workerHostsById.put(id, host);
+            workerPortsById.put(id, wp);
+            rebuildRing();
+            synchronized (workerAvailable){
+                workerAvailable.notifyAll();
+            }
+            sock.close();
+            broadcastReload();
+            System.out.printf("Worker %d @ %s:%d registered%n", id, host, wp);
+
+        } else if (line != null && line.startsWith("WORKER_SHUTDOWN:")) {
+            int rem = Integer.parseInt(line.split(":")[1].trim());
+            synchronized (MasterServer.class) { workerCount--; }
+            String remHost = workerHostsById.remove(rem);
+            Integer remPort = workerPortsById.remove(rem);
+            if (remHost != null && remPort != null) {
+                WorkerChannel.close(remHost, remPort);
+            }
+            rebuildRing();
+            synchronized (workerAvailable) {
+                shiftWorkerIdsDown(rem);
+                workerAvailable.notifyAll();
+                broadcastReload();
+            }
+            sock.close();
+
+        } else if ("REDUCE_RESULT".equals(line)) {
+            String jobId = in.readLine();
+            String cmd   = in.readLine();
+            String agg   = in.readLine();
+            PendingReduces.complete(cmd, jobId, agg);
+            out.println("ACK");
+            sock.close();
+
+        } else {
+            clientExecutor.execute(new ActionForClients(sock, line, in));
+        }
+    }
+
+    /**
+     * Answers one request frame of a client that negotiated the binary wire
+     * protocol; the front end sends the reply back as a
+     * {@link WireProtocol#RESPONSE} frame with the request's jobId.
+     *
+     * @return the reply payload
+     */
+    static String binaryReply(String cmd, String data) {
+        if ("REGISTER".equalsIgnoreCase(cmd)) return register(data);
+        if ("LOGIN".equalsIgnoreCase(cmd)) return login(data);
+        return ActionForClients.respond(cmd, data);
+    }
+
+    /**
+     * Registers a new user.
+     *
+     * @param data "username|password" or "ignored_prefix|username|password"
+     * @return the reply line for the client
+     */
+    static String register(String data) {
+        if (data == null) {
+            System.err.println("REGISTER: No data received after REGISTER command.");
+            return "ERROR:NO_DATA_FOR_REGISTER";
+        }
+        String[] parts = data.split("\\|", -1); // Split by pipe, -1 preserves trailing empty strings
+        String user;
+        String pass;
+
+        if (parts.length == 2) { // Expected format: "username|password"
+            user = parts[0];
+            pass = parts[1];
+        } else if (parts.length >= 3) { // Expected format: "ignored_prefix|username|password" (or more parts, we only care about user/pass)
+            user = parts[1];
+            pass = parts[2];
+        } else {
+            // Invalid format (e.g., "username_only", "", or less than 2 parts)
+            System.err.println("REGISTER: Invalid data format (expected 2 or >=3 parts): " + data);
+            return "ERROR:INVALID_REGISTER_FORMAT";
+        }
+
+        // Optional: Add validation for empty username if required
+        if (user.isEmpty()) {
+            System.err.println("REGISTER: Username was empty. Data: " + data);
+            return "ERROR:USERNAME_CANNOT_BE_EMPTY";
+        }
+        if (userCredentials.putIfAbsent(user, pass) != null) {
+            return "ERROR:USER_EXISTS";
+        }
+        saveCredentials(); // Potential IOException or other errors during save
+        return "REGISTER_SUCCESS";
+    }
+
+    /**
+     * Logs a user in and opens a session.
+     *
+     * @param data "username|password" or "ignored_prefix|username|password"
+     * @return the reply line for the client, "LOGIN_SUCCESS|token" on success
+     */
+    static String login(String data) {
+        if (data == null) {
+            System.err.println("LOGIN: No data received after LOGIN command.");
+            return "ERROR:NO_DATA_FOR_LOGIN";
+        }
+        String[] parts = data.split("\\|", -1); // Split by pipe, -1 preserves trailing empty strings
+        String user;
+        String pass;
+
+        if (parts.length == 2) { // Expected format: "username|password"
+            user = parts[0];
+            pass = parts[1];
+        } else if (parts.length >= 3) { // Expected format: "ignored_prefix|username|password" (or more)
+            user = parts[1];
+            pass = parts[2];
+        } else {
+            // Invalid format
+            System.err.println("LOGIN: Invalid data format (expected 2 or >=3 parts): " + data);
+            return "ERROR:INVALID_LOGIN_FORMAT";
+        }
+
+        // Optional: Add validation for empty username if required for login
+        if (user.isEmpty()) {
+            System.err.println("LOGIN: Username was empty. Data: " + data);
+            return "ERROR:USERNAME_CANNOT_BE_EMPTY_FOR_LOGIN";
+        }
+        if (!userCredentials.containsKey(user) ||
+                !userCredentials.get(user).equals(pass)) {
+            return "ERROR:INVALID_CREDENTIALS";
         }
+        String token = UUID.randomUUID().toString();
+        userSessions.put(token, user);
+        return "LOGIN_SUCCESS|" + token;
     }
 
+    /**
+     * Tells every worker the current membership: {@code total|self|ringSpec},
+     * where {@code self} is the worker's own node name on the ring.
+     */
     public static void broadcastReload() {
         int total = workerHostsById.size();
-        for (int id : workerHostsById.keySet()) {
+        String spec = ring.toSpec();
+        for (int id : new ArrayList<>(workerHostsById.keySet())) {
             String h = workerHostsById.get(id);
-            int    p = workerPortsById.get(id);
-            try (Socket s = new Socket(h, p);
-                 PrintWriter o = new PrintWriter(s.getOutputStream(), true)) {
-                String jobId = ActionForClients.generateJobId();
-                o.println("RELOAD");
-                o.println(total);
-                o.println(jobId);
-            } catch (IOException ex) {
-                System.err.println("Reload→" + id + " failed: " + ex.getMessage());
+            Integer p = workerPortsById.get(id);
+            if (h == null || p == null) continue;
+            String jobId = ActionForClients.generateJobId();
+            sendToWorkerAsync(id, "RELOAD", total + "|" + nodeName(h, p) + "|" + spec, jobId, "Reload");
+        }
+    }
+
+    /** The ring node name of a worker. */
+    static String nodeName(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /**
+     * Returns the id of the worker that owns a store on the ring.
+     *
+     * @return the worker id, or -1 if no registered worker matches the owner
+     */
+    public static int workerIdOf(String node) {
+        if (node == null) return -1;
+        synchronized (workerHostsById) {
+            for (Map.Entry<Integer, String> e : workerHostsById.entrySet()) {
+                Integer p = workerPortsById.get(e.getKey());
+                if (p != null && node.equals(nodeName(e.getValue(), p))) {
+                    return e.getKey();
+                }
             }
         }
+        return -1;
     }
 
-    public static void broadcastToReplicas(List<Integer> ids, String msg) {
-        for (int id : ids) {
-            String h = workerHostsById.get(id);
-            int    p = workerPortsById.get(id);
-            try (Socket s = new Socket(h, p);
-                 PrintWriter o = new PrintWriter(s.getOutputStream(), true)) {
-                o.println(msg);
-            } catch (IOException ex) {
-                System.err.println("Replica→" + id + " failed: " + ex.getMessage());
+    private static void rebuildRing() {
+        List<String> nodes = new ArrayList<>();
+        synchronized (workerHostsById) {
+            for (Map.Entry<Integer, String> e : workerHostsById.entrySet()) {
+                Integer p = workerPortsById.get(e.getKey());
+                if (p != null) nodes.add(nodeName(e.getValue(), p));
             }
         }
+        ring = HashRing.of(nodes);
+    }
+
+    public static void broadcastToReplicas(List<Integer> ids, String cmd, String data, String jobId) {
+        for (int id : ids) {
+            sendToWorkerAsync(id, cmd, data, jobId, "Replica");
+        }
+    }
+
+    /**
+     * Fire-and-forget send over the worker's persistent channel; failures are only logged.
+     */
+    private static void sendToWorkerAsync(int id, String cmd, String data, String jobId, String what) {
+        String h = workerHostsById.get(id);
+        Integer p = workerPortsById.get(id);
+        if (h == null || p == null) return;
+        try {
+            WorkerChannel.forWorker(h, p).send(cmd, data, jobId)
+                    .whenComplete((r, ex) -> {
+                        if (ex != null) {
+                            System.err.println(what + "→" + id + " failed: " + ex.getMessage());
+                        }
+                    });
+        } catch (IOException ex) {
+            System.err.println(what + "→" + id + " failed: " + ex.getMessage());
+        }
     }
 
     private static void shiftWorkerIdsDown(int removedId) {
@@ -322,17 +412,8 @@ public class MasterServer {
         workerPortsById.putAll(newP);
         for (var e : newH.entrySet()) {
             int id = e.getKey();
-            String h = e.getValue();
-            int    p = newP.get(id);
-            try (Socket s = new Socket(h, p);
-                 PrintWriter o = new PrintWriter(s.getOutputStream(), true)) {
-                String jobId = ActionForClients.generateJobId();
-                o.println("DECREMENT_ID");
-                o.println(id + ":" + workerHostsById.size());
-                o.println(jobId);
-            } catch (IOException ex) {
-                System.err.println("Notify→" + id + " failed: " + ex.getMessage());
-            }
+            String jobId = ActionForClients.generateJobId();
+            sendToWorkerAsync(id, "DECREMENT_ID", id + ":" + workerHostsById.size(), jobId, "Notify");
         }
     }
 }
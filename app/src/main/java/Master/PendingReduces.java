@@ -0,0 +1,117 @@
+package Master;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import Reduce.Reduce;
+import Reduce.ReduceHandler;
+import Reduce.TypedReducers;
+
+/**
+ * Completion registry for reduce results, keyed by {@code command|jobId}.
+ * <p>
+ * A client thread registers its job <em>before</em> the command is forwarded to
+ * the workers and then waits on its own future. Every reducer of
+ * {@link Reduce#REDUCERS} sends one REDUCE_RESULT for its share of the keys;
+ * once all of them are in, the shares are merged and only that future is
+ * completed; no other waiting request is woken up. Results for jobs nobody is
+ * waiting for (the client timed out or never registered) are dropped instead
+ * of accumulating.
+ */
+public final class PendingReduces {
+    /**
+     * How long a client request waits for its reduce result. By default a little
+     * longer than the reducer's own job deadline, so that a job missing some
+     * workers still comes back as a partial result instead of a timeout here.
+     */
+    public static final long REDUCE_TIMEOUT_MS =
+            Long.getLong("freefood.reduce.timeoutMs", ReduceHandler.JOB_DEADLINE_MS + 5_000L);
+
+    private static final Map<String, PendingJob> waiting = new ConcurrentHashMap<>();
+
+    private PendingReduces() {}
+
+    /**
+     * Registers interest in the result of a reduce job.
+     *
+     * @return the future completed by {@link #complete}
+     */
+    public static CompletableFuture<String> register(String command, String jobId) {
+        PendingJob job = new PendingJob(Reduce.REDUCERS.size());
+        waiting.put(key(command, jobId), job);
+        return job.future;
+    }
+
+    /**
+     * Delivers one reducer's result to the request waiting for it, and
+     * completes the request once every reducer has answered.
+     *
+     * @return false if nobody was waiting and the result was discarded
+     */
+    public static boolean complete(String command, String jobId, String result) {
+        PendingJob job = waiting.get(key(command, jobId));
+        if (job == null) {
+            System.err.println("Dropping orphaned reduce result for " + key(command, jobId));
+            return false;
+        }
+        synchronized (job) {
+            job.shards.add(result);
+            if (job.shards.size() < job.expectedShards) {
+                return true;
+            }
+        }
+        waiting.remove(key(command, jobId), job);
+        return job.future.complete(TypedReducers.mergeShards(command, job.shards));
+    }
+
+    /** Withdraws a registration, e.g. when the map phase already failed. */
+    public static void cancel(String command, String jobId) {
+        PendingJob job = waiting.remove(key(command, jobId));
+        if (job != null) {
+            job.future.cancel(false);
+        }
+    }
+
+    /**
+     * Waits for a registered job's result, up to {@link #REDUCE_TIMEOUT_MS}.
+     * The registration is always removed when this returns.
+     *
+     * @return the reduced JSON, or a JSON error object on timeout or interruption
+     */
+    public static String await(String command, String jobId, CompletableFuture<String> f) {
+        try {
+            return f.get(REDUCE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return "{\"error\":\"Timed out waiting for reduce result.\"}";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "{\"error\":\"Interrupted while waiting for reduce result.\"}";
+        } catch (ExecutionException | CancellationException e) {
+            return "{\"error\":\"Reduce job failed.\"}";
+        } finally {
+            waiting.computeIfPresent(key(command, jobId), (k, job) -> job.future == f ? null : job);
+        }
+    }
+
+    private static String key(String command, String jobId) {
+        return command + "|" + jobId;
+    }
+
+    /** A registered job: its future and the reducer results received so far. */
+    private static final class PendingJob {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final List<String> shards = new ArrayList<>();
+        final int expectedShards;
+
+        PendingJob(int expectedShards) {
+            this.expectedShards = expectedShards;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package Master;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import protocol.WireProtocol;
+
+/**
+ * Long-lived, multiplexed connection from the Master to one worker.
+ * <p>
+ * Instead of opening a socket per message, the Master keeps one connection per
+ * worker address (see {@link #forWorker}). The connection starts with a
+ * {@code MUX} line, after which every request is the usual three lines
+ * (command, data, jobId) and every response comes back as a single line
+ * prefixed with the jobId of the request it answers:
+ * <pre>
+ *   &lt;jobId&gt; CMD_RESPONSE:...
+ * </pre>
+ * When the binary wire protocol is enabled (the default, see {@link WireProtocol})
+ * the channel opens with the binary preamble instead, and requests and responses
+ * are length-prefixed frames tagged with the same jobId.
+ * Responses may arrive in any order; a reader thread matches them back to the
+ * waiting callers. If the connection breaks, all in-flight requests fail and the
+ * next request opens a fresh connection.
+ */
+public class WorkerChannel {
+    /** Marker sent as the first line of a multiplexed connection. */
+    public static final String MUX_HEADER = "MUX";
+
+    /** How long a caller waits for one worker response. */
+    public static final long REQUEST_TIMEOUT_MS =
+            Long.getLong("freefood.worker.timeoutMs", 30_000L);
+
+    private static final Map<String, WorkerChannel> channels = new ConcurrentHashMap<>();
+
+    private final String address;
+    private final Socket socket;
+    private final boolean binary;
+    private final PrintWriter out;            // text mode
+    private final DataOutputStream frameOut;  // binary mode
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    private WorkerChannel(String host, int port) throws IOException {
+        this.address = key(host, port);
+        this.socket  = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.binary  = WireProtocol.ENABLED;
+        if (binary) {
+            this.out      = null;
+            this.frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            WireProtocol.writePreamble(frameOut);
+            frameOut.flush();
+        } else {
+            this.frameOut = null;
+            this.out      = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream())), false);
+            out.println(MUX_HEADER);
+            out.flush();
+        }
+
+        Thread reader = new Thread(this::readLoop, "worker-channel-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Returns the open channel for the given worker, connecting if needed.
+     *
+     * @throws IOException if a new connection cannot be established
+     */
+    public static WorkerChannel forWorker(String host, int port) throws IOException {
+        String k = key(host, port);
+        WorkerChannel ch = channels.get(k);
+        if (ch != null && !ch.closed) {
+            return ch;
+        }
+        synchronized (channels) {
+            ch = channels.get(k);
+            if (ch == null || ch.closed) {
+                ch = new WorkerChannel(host, port);
+                channels.put(k, ch);
+            }
+            return ch;
+        }
+    }
+
+    /** Closes and forgets the channel to a worker that left the cluster. */
+    public static void close(String host, int port) {
+        WorkerChannel ch = channels.remove(key(host, port));
+        if (ch != null) {
+            ch.shutdown(new IOException("Worker " + ch.address + " removed"));
+        }
+    }
+
+    /**
+     * Sends a request and returns a future for the raw response line
+     * (e.g. {@code CMD_RESPONSE:...}) without the jobId prefix. The future fails
+     * with a {@link TimeoutException} after {@link #REQUEST_TIMEOUT_MS}.
+     *
+     * @param command the command
+     * @param data    the data line
+     * @param jobId   request id; must be unique among requests in flight on this channel
+     */
+    public CompletableFuture<String> send(String command, String data, String jobId) {
+        CompletableFuture<String> f = new CompletableFuture<>();
+        if (closed) {
+            f.completeExceptionally(new IOException("Channel to " + address + " is closed"));
+            return f;
+        }
+        inFlight.put(jobId, f);
+        f.orTimeout(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((r, ex) -> inFlight.remove(jobId, f));
+        if (closed && inFlight.remove(jobId) != null) {
+            // lost a race with shutdown(); fail now instead of timing out
+            f.completeExceptionally(new IOException("Channel to " + address + " is closed"));
+            return f;
+        }
+        if (binary) {
+            synchronized (frameOut) {
+                try {
+                    WireProtocol.writeFrame(frameOut, new WireProtocol.Frame(command, jobId, data));
+                    frameOut.flush();
+                } catch (IOException e) {
+                    shutdown(e);
+                }
+            }
+        } else {
+            synchronized (out) {
+                out.println(command);
+                out.println(data == null ? "" : data);
+                out.println(jobId);
+                out.flush();
+                if (out.checkError()) {
+                    shutdown(new IOException("Write to " + address + " failed"));
+                }
+            }
+        }
+        return f;
+    }
+
+    private void readLoop() {
+        if (binary) {
+            readFrames();
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int sp = line.indexOf(' ');
+                if (sp <= 0) continue;
+                CompletableFuture<String> f = inFlight.remove(line.substring(0, sp));
+                if (f != null) {
+                    f.complete(line.substring(sp + 1));
+                }
+            }
+            shutdown(new EOFException("Worker " + address + " closed the channel"));
+        } catch (IOException e) {
+            shutdown(e);
+        }
+    }
+
+    private void readFrames() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            if (WireProtocol.readPreamble(in) > WireProtocol.VERSION) {
+                throw new IOException("Worker " + address + " speaks an unknown wire version");
+            }
+            WireProtocol.Frame frame;
+            while ((frame = WireProtocol.readFrame(in)) != null) {
+                CompletableFuture<String> f = inFlight.remove(frame.getJobId());
+                if (f != null) {
+                    f.complete(frame.getPayload());
+                }
+            }
+            shutdown(new EOFException("Worker " + address + " closed the channel"));
+        } catch (IOException e) {
+            shutdown(e);
+        }
+    }
+
+    private void shutdown(IOException cause) {
+        if (closed) return;
+        closed = true;
+        channels.remove(address, this);
+        try { socket.close(); } catch (IOException ignored) {}
+        for (CompletableFuture<String> f : inFlight.values()) {
+            f.completeExceptionally(cause);
+        }
+        inFlight.clear();
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+}
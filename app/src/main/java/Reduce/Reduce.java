@@ -3,18 +3,35 @@ package Reduce;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Reduce server that listens on a specific port and dispatches each
  * incoming connection to a ReduceHandler thread for processing.
+ * <p>
+ * The reduce tier may consist of several of these servers. Workers split
+ * their intermediate keys across them with {@link #partitionOf}, every
+ * reducer reduces its share of the keys, and the Master merges the shares.
+ * The servers are listed in {@code -Dfreefood.reducers=host:port,host:port},
+ * which workers and Master must agree on; start each one with its port:
+ * <pre>
+ *   java Reduce.Reduce [port]
+ * </pre>
  */
 public class Reduce {
-    /** Port on which this reduce server listens for connections. */
+    /** Default port on which a reduce server listens for connections. */
     public static final int REDUCE_PORT = 23456;
 
+    /** The reduce servers of the cluster, in partition order. */
+    public static final List<Endpoint> REDUCERS =
+            parseEndpoints(System.getProperty("freefood.reducers", "localhost:" + REDUCE_PORT));
+
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(REDUCE_PORT)) {
-            System.out.println("Reduce server listening on port " + REDUCE_PORT);
+        int port = args.length > 0 ? Integer.parseInt(args[0].trim()) : REDUCE_PORT;
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Reduce server listening on port " + port);
             while (true) {
                 Socket socket = serverSocket.accept();
                 new Thread(new ReduceHandler(socket)).start();
@@ -24,4 +41,50 @@ public class Reduce {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the reducer responsible for an intermediate key.
+     *
+     * @param key      the intermediate key
+     * @param reducers the number of reducers
+     * @return an index into {@link #REDUCERS}
+     */
+    public static int partitionOf(String key, int reducers) {
+        return Math.floorMod(key.hashCode(), reducers);
+    }
+
+    /** Host and port of one reduce server. */
+    public static final class Endpoint {
+        public final String host;
+        public final int port;
+
+        public Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private static List<Endpoint> parseEndpoints(String spec) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+            int colon = part.lastIndexOf(':');
+            if (colon < 0) {
+                endpoints.add(new Endpoint(part, REDUCE_PORT));
+            } else {
+                endpoints.add(new Endpoint(part.substring(0, colon),
+                        Integer.parseInt(part.substring(colon + 1).trim())));
+            }
+        }
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("freefood.reducers lists no reduce server");
+        }
+        return Collections.unmodifiableList(endpoints);
+    }
+}
@@ -1,26 +1,66 @@
 package Reduce;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.reflect.TypeToken;
 import mapreduce.MapReduceFramework;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import protocol.WireProtocol;
+import java.io.*;
 import java.lang.reflect.Type;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles reduce operations by aggregating partial mapping results
  * from worker nodes and forwarding the aggregated result to the Master server.
+ * <p>
+ * Partials are folded into the job's {@link TypedReducers typed reducer} as
+ * they arrive and each worker is acknowledged straight away, so the reducer
+ * holds one running result per job rather than every worker's mapping, and
+ * no connection waits for the slowest worker.
+ * <p>
+ * Every job has a deadline ({@link #JOB_DEADLINE_MS}). A job whose workers do
+ * not all report in time still completes, with the partials it has and the
+ * missing worker ids, and is evicted either way.
  */
 public class ReduceHandler implements Runnable {
+    /**
+     * How long a job waits for its partials, counted from the first one. When it
+     * runs out, the job completes with what it has and lists the missing worker
+     * ids under {@link #MISSING_WORKERS}. The Master's reduce timeout is derived
+     * from it, so set {@code freefood.reduce.jobDeadlineMs} the same on both.
+     */
+    public static final long JOB_DEADLINE_MS =
+            Long.getLong("freefood.reduce.jobDeadlineMs", 30_000L);
+
+    /** Result field listing the workers whose partial never arrived. */
+    public static final String MISSING_WORKERS = "_missingWorkers";
+    /**
+     * Field of a worker's error reply listing the reducers its mapping could
+     * not be sent to. Their results will never be complete, so the Master
+     * fails the job at once instead of waiting for them.
+     */
+    public static final String UNREACHABLE_REDUCERS = "_unreachableReducers";
+
     private final Socket socket;
-    private static final Map<String, AggregationJob> jobs = new HashMap<>();
+    private static final Map<String, AggregationJob> jobs = new ConcurrentHashMap<>();
+    /** Recently finished job ids; partials arriving for them are dropped. */
+    private static final Map<String, Boolean> finishedJobs = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "reduce-deadlines");
+                t.setDaemon(true);
+                return t;
+            });
 
     // Master connection info
     private static final String MASTER_HOST = "localhost";
@@ -32,71 +72,152 @@ public class ReduceHandler implements Runnable {
 
     @Override
     public void run() {
-        try (
-                Socket s = socket;
-                BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
-                PrintWriter writer = new PrintWriter(s.getOutputStream(), true)
-        ) {
-            String jobId = reader.readLine();
-            if (jobId == null) return;
-            String command = reader.readLine();
-            if (command == null) return;
-            int expectedCount = Integer.parseInt(reader.readLine().trim());
-            String mappingJson = reader.readLine();
-
-            System.out.println("Reduce received job=" + jobId + ", cmd=" + command);
+        try (Socket s = socket) {
+            BufferedInputStream raw = new BufferedInputStream(s.getInputStream());
+            String jobId;
+            String command;
+            int expectedCount;
+            int workerId;
+            String mappingJson;
+            Runnable ack;
+
+            if (WireProtocol.isBinary(raw)) {
+                // one frame: command, jobId, payload = "expectedCount\nworkerId\nmappingJson"
+                DataInputStream in = new DataInputStream(raw);
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                in.readFully(new byte[4]);        // preamble; the worker does not wait for ours
+                WireProtocol.Frame frame = WireProtocol.readFrame(in);
+                if (frame == null) return;
+                jobId   = frame.getJobId();
+                command = frame.getCommand();
+                String payload = frame.getPayload();
+                int nl  = payload.indexOf('\n');
+                int nl2 = payload.indexOf('\n', nl + 1);
+                expectedCount = Integer.parseInt(payload.substring(0, nl).trim());
+                workerId      = Integer.parseInt(payload.substring(nl + 1, nl2).trim());
+                mappingJson   = payload.substring(nl2 + 1);
+                ack = () -> {
+                    try {
+                        WireProtocol.writeFrame(out, new WireProtocol.Frame(WireProtocol.RESPONSE, frame.getJobId(), "ACK"));
+                        out.flush();
+                    } catch (IOException ignored) {
+                        // the worker does not wait for the ACK and may be gone already
+                    }
+                };
+            } else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(raw));
+                PrintWriter writer = new PrintWriter(s.getOutputStream(), true);
+                jobId = reader.readLine();
+                if (jobId == null) return;
+                command = reader.readLine();
+                if (command == null) return;
+                expectedCount = Integer.parseInt(reader.readLine().trim());
+                workerId = Integer.parseInt(reader.readLine().trim());
+                mappingJson = reader.readLine();
+                ack = () -> writer.println("ACK");
+            }
+
+            System.out.println("Reduce received job=" + jobId + ", cmd=" + command + ", worker=" + workerId);
 
             Gson gson = new Gson();
             Type listType = new TypeToken<List<MapReduceFramework.Pair<String, String>>>(){}.getType();
             List<MapReduceFramework.Pair<String, String>> partialMapping =
                     gson.fromJson(mappingJson, listType);
 
-            AggregationJob job;
-            synchronized (jobs) {
-                job = jobs.computeIfAbsent(jobId,
-                        id -> new AggregationJob(jobId, command, expectedCount));
-            }
-
-            synchronized (job) {
-                job.partials.add(partialMapping);
-                if (!job.isCompleted && job.partials.size() >= job.expectedCount) {
-                    Map<String, String> reduced = new HashMap<>();
-                    for (var list : job.partials) {
-                        for (var pair : list) {
-                            reduced.merge(pair.getKey(), pair.getValue(), (a, b) -> a + ", " + b);
-                        }
-                    }
-                    job.finalResult = gson.toJson(reduced);
-                    job.isCompleted = true;
-                    job.notifyAll();
-
-                    System.out.println("Aggregated job=" + jobId + ", result=" + job.finalResult);
-                    sendAggregatedResultToMaster(jobId, command, job.finalResult);
-                } else {
-                    while (!job.isCompleted) {
-                        try {
-                            job.wait();
-                        } catch (InterruptedException ie) {
-                            Thread.currentThread().interrupt();
-                            return;
+            // fold this partial into the job's running result and let the worker go;
+            // the parsed mapping is garbage as soon as the fold returns
+            String finalResult = null;
+            AggregationJob job = jobs.computeIfAbsent(jobId,
+                    id -> finishedJobs.containsKey(id) ? null : startJob(jobId, command, expectedCount));
+            if (job == null) {
+                System.out.println("Ignoring late partial for finished job=" + jobId + " from worker " + workerId);
+            } else {
+                synchronized (job) {
+                    if (job.finished) {
+                        System.out.println("Ignoring late partial for finished job=" + jobId + " from worker " + workerId);
+                    } else if (!job.received.add(workerId)) {
+                        System.out.println("Ignoring duplicate partial for job=" + jobId + " from worker " + workerId);
+                    } else {
+                        TypedReducers.foldAll(job.reducer, partialMapping);
+                        if (job.received.size() >= job.expectedCount) {
+                            finalResult = finish(job);
                         }
                     }
                 }
-                writer.println("ACK");
-                job.responseCount++;
             }
+            partialMapping = null;
+            ack.run();
 
-            synchronized (jobs) {
-                if (job.responseCount >= job.expectedCount) {
-                    jobs.remove(jobId);
-                }
+            if (finalResult != null) {
+                System.out.println("Aggregated job=" + jobId + ", result=" + finalResult);
+                sendAggregatedResultToMaster(jobId, command, finalResult);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void sendAggregatedResultToMaster(String jobId, String command, String result) {
+    /** Creates a job and arms its deadline; called once per jobId from {@code jobs.computeIfAbsent}. */
+    private static AggregationJob startJob(String jobId, String command, int expectedCount) {
+        AggregationJob job = new AggregationJob(jobId, command, expectedCount);
+        job.deadline = timer.schedule(() -> expire(job), JOB_DEADLINE_MS, TimeUnit.MILLISECONDS);
+        return job;
+    }
+
+    /**
+     * Deadline of a job: completes it with the partials received so far and
+     * reports the workers that never sent theirs.
+     */
+    private static void expire(AggregationJob job) {
+        String result;
+        synchronized (job) {
+            if (job.finished) return;
+            result = finish(job);
+        }
+        System.out.println("Job " + job.jobId + " timed out with " + job.received.size()
+                + " of " + job.expectedCount + " partials, result=" + result);
+        sendAggregatedResultToMaster(job.jobId, job.command, result);
+    }
+
+    /**
+     * Marks a job finished, evicts it and renders its result, adding
+     * {@code _missingWorkers} when not every worker contributed.
+     * Caller holds the job's lock.
+     */
+    private static String finish(AggregationJob job) {
+        job.finished = true;
+        job.deadline.cancel(false);
+        // remember the id before evicting, so a late partial cannot start the job again
+        finishedJobs.put(job.jobId, Boolean.TRUE);
+        timer.schedule(() -> finishedJobs.remove(job.jobId), JOB_DEADLINE_MS, TimeUnit.MILLISECONDS);
+        jobs.remove(job.jobId, job);
+
+        JsonElement result = job.reducer.result();
+        if (job.received.size() < job.expectedCount && result.isJsonObject()) {
+            JsonArray missing = new JsonArray();
+            for (int id = 0; id < job.expectedCount; id++) {
+                if (!job.received.contains(id)) missing.add(id);
+            }
+            result.getAsJsonObject().add(MISSING_WORKERS, missing);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Merges the partial mappings of all workers into the final JSON result,
+     * using the command's {@link TypedReducers typed reducer}.
+     * Shared with the Master, which calls it directly in embedded reduce mode.
+     *
+     * @param command  the command being reduced
+     * @param partials one mapping list per worker
+     * @return the reduced result as a JSON object
+     */
+    public static String reduce(String command,
+                                List<List<MapReduceFramework.Pair<String, String>>> partials) {
+        return TypedReducers.reduce(command, partials);
+    }
+
+    private static void sendAggregatedResultToMaster(String jobId, String command, String result) {
         try (Socket master = new Socket(MASTER_HOST, MASTER_PORT);
              PrintWriter mw = new PrintWriter(master.getOutputStream(), true)) {
             mw.println("REDUCE_RESULT");
@@ -109,19 +230,25 @@ public class ReduceHandler implements Runnable {
         }
     }
 
+    /**
+     * The running state of one reduce job: the command's reducer, into which
+     * every partial is folded on arrival, and which workers it has heard from.
+     */
     private static class AggregationJob {
         final String jobId;
         final String command;
         final int expectedCount;
-        final List<List<MapReduceFramework.Pair<String, String>>> partials = new ArrayList<>();
-        boolean isCompleted = false;
-        String finalResult;
-        int responseCount = 0;
+        final TypedReducers.TypedReducer reducer;
+        /** Ids of the workers whose partial has been folded in. */
+        final Set<Integer> received = new HashSet<>();
+        boolean finished = false;
+        ScheduledFuture<?> deadline;
 
         AggregationJob(String jobId, String command, int expectedCount) {
             this.jobId = jobId;
             this.command = command;
             this.expectedCount = expectedCount;
+            this.reducer = TypedReducers.forCommand(command);
         }
     }
 }
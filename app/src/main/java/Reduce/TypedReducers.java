@@ -0,0 +1,327 @@
+package Reduce;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import mapreduce.MapReduceFramework;
+
+/**
+ * Pluggable, typed reducers for the reduce stage, one per command.
+ * <p>
+ * A reducer folds the workers' partial pairs one at a time into a typed
+ * accumulator (numbers are summed as numbers, sets are unioned as sets) and
+ * only renders JSON once, when the job completes. Commands without a
+ * registered reducer fall back to joining their values with ", ". Workers
+ * pre-aggregate with the same reducers ({@link #combiner}).
+ * <ul>
+ *   <li>AGGREGATE_SALES_BY_PRODUCT_NAME: per-product, per-store sales summed as longs,
+ *       emitted as {@code {"<product>": {"<store>": n, ...}}}</li>
+ *   <li>LIST_STORES, DELETED_PRODUCTS: set union, emitted as a JSON array</li>
+ *   <li>SEARCH: store name to store object; every match unless
+ *       {@link #SEARCH_LIMIT} is set, then the alphabetically first ones and a
+ *       {@link #TRUNCATED} entry saying how many matched in all</li>
+ * </ul>
+ */
+public final class TypedReducers {
+    /**
+     * Largest number of stores a SEARCH result carries,
+     * {@code -Dfreefood.search.maxResults=N}; 0 (the default) means no limit.
+     */
+    public static final int SEARCH_LIMIT = Integer.getInteger("freefood.search.maxResults", 0);
+    /**
+     * Key of the entry a cut SEARCH result carries, next to the stores:
+     * {@code {"returned": n, "total": m}}.
+     */
+    public static final String TRUNCATED = "_truncated";
+
+    private static final Map<String, Supplier<TypedReducer>> registry = new ConcurrentHashMap<>();
+    static {
+        register("AGGREGATE_SALES_BY_PRODUCT_NAME", SalesSum::new);
+        register("LIST_STORES", SetUnion::new);
+        register("DELETED_PRODUCTS", SetUnion::new);
+        register("SEARCH", () -> new BoundedSearch(SEARCH_LIMIT > 0 ? SEARCH_LIMIT : Integer.MAX_VALUE));
+    }
+
+    private TypedReducers() {}
+
+    /** Folds partial results of one job into a typed accumulator. */
+    public interface TypedReducer {
+        /** Folds one pair of a worker's partial mapping, as its combiner emitted it. */
+        void fold(String key, String value);
+
+        /** Folds one pair straight from a mapper, before any combining. */
+        default void add(String key, String mapped) {
+            fold(key, mapped);
+        }
+
+        /** Renders the accumulated result. */
+        JsonElement result();
+    }
+
+    /**
+     * Registers (or replaces) the reducer used for a command.
+     *
+     * @param command the command name
+     * @param factory creates a fresh reducer for each job
+     */
+    public static void register(String command, Supplier<TypedReducer> factory) {
+        registry.put(command.toUpperCase(), factory);
+    }
+
+    /** Returns a fresh reducer for the command. */
+    public static TypedReducer forCommand(String command) {
+        Supplier<TypedReducer> f = registry.get(command.toUpperCase());
+        return f != null ? f.get() : new StringJoin();
+    }
+
+    /**
+     * The worker-side combiner for a command: reduces one key's mapped values
+     * with a fresh typed reducer and emits that key's entry of its result, so a
+     * combined value is exactly what {@link TypedReducer#fold} expects.
+     *
+     * @throws IllegalArgumentException if the command has no registered reducer
+     */
+    public static MapReduceFramework.Reducer<String, String> combiner(String command) {
+        Supplier<TypedReducer> f = registry.get(command.toUpperCase());
+        if (f == null) {
+            throw new IllegalArgumentException("No reducer registered for " + command);
+        }
+        return (key, values) -> {
+            TypedReducer reducer = f.get();
+            for (String v : values) {
+                reducer.add(key, v);
+            }
+            return reducer.result().getAsJsonObject().get(key).toString();
+        };
+    }
+
+    /**
+     * Reduces complete partial mappings in one go.
+     *
+     * @param command  the command being reduced
+     * @param partials one mapping list per worker; null entries are skipped
+     * @return the reduced result as JSON
+     */
+    public static String reduce(String command,
+                                List<List<MapReduceFramework.Pair<String, String>>> partials) {
+        TypedReducer reducer = forCommand(command);
+        for (var list : partials) {
+            foldAll(reducer, list);
+        }
+        return reducer.result().toString();
+    }
+
+    /**
+     * Merges the results of several reducers for one job. Reducers own disjoint
+     * keys, so their entries are simply combined; arrays under the same key (the
+     * missing-worker lists) are unioned, and SEARCH is cut back to
+     * {@link #SEARCH_LIMIT} stores, counting every shard's matches in its
+     * {@link #TRUNCATED} entry.
+     *
+     * @param command the command being reduced
+     * @param shards  one JSON result object per reducer
+     * @return the merged result as JSON
+     */
+    public static String mergeShards(String command, List<String> shards) {
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        JsonObject merged = new JsonObject();
+        long matches = 0;
+        for (String shard : shards) {
+            JsonElement e = JsonParser.parseString(shard);
+            if (!e.isJsonObject()) continue;
+            JsonObject result = e.getAsJsonObject();
+            JsonElement cut = result.remove(TRUNCATED);
+            if (cut != null) {
+                matches += cut.getAsJsonObject().get("total").getAsLong();
+            } else {
+                matches += result.size() - (result.has(ReduceHandler.MISSING_WORKERS) ? 1 : 0);
+            }
+            for (Map.Entry<String, JsonElement> entry : result.entrySet()) {
+                JsonElement previous = merged.get(entry.getKey());
+                if (previous != null && previous.isJsonArray() && entry.getValue().isJsonArray()) {
+                    JsonArray union = previous.getAsJsonArray();
+                    for (JsonElement item : entry.getValue().getAsJsonArray()) {
+                        if (!union.contains(item)) union.add(item);
+                    }
+                } else {
+                    merged.add(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        if ("SEARCH".equalsIgnoreCase(command)) {
+            TreeMap<String, JsonElement> stores = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> entry : merged.entrySet()) {
+                if (!entry.getKey().equals(ReduceHandler.MISSING_WORKERS)) {
+                    stores.put(entry.getKey(), entry.getValue());
+                }
+            }
+            while (SEARCH_LIMIT > 0 && stores.size() > SEARCH_LIMIT) {
+                merged.remove(stores.pollLastEntry().getKey());
+            }
+            if (matches > stores.size()) {
+                merged.add(TRUNCATED, truncated(stores.size(), matches));
+            }
+        }
+        return merged.toString();
+    }
+
+    /** Folds every pair of one worker's partial mapping. */
+    public static void foldAll(TypedReducer reducer, List<MapReduceFramework.Pair<String, String>> partial) {
+        if (partial == null) return;
+        for (var pair : partial) {
+            if (pair != null && pair.getKey() != null) {
+                reducer.fold(pair.getKey(), pair.getValue());
+            }
+        }
+    }
+
+    /* ---------- reducers ---------- */
+
+    /** Sums sales counts per product and store. Values are {@code {"<store>": n}} objects. */
+    static class SalesSum implements TypedReducer {
+        private final Map<String, Map<String, long[]>> byProduct = new LinkedHashMap<>();
+
+        @Override
+        public void fold(String product, String value) {
+            Map<String, long[]> perStore = byProduct.computeIfAbsent(product, k -> new LinkedHashMap<>());
+            for (Map.Entry<String, JsonElement> e : parseObject(value).entrySet()) {
+                perStore.computeIfAbsent(e.getKey(), k -> new long[1])[0] += e.getValue().getAsLong();
+            }
+        }
+
+        @Override
+        public JsonElement result() {
+            JsonObject out = new JsonObject();
+            byProduct.forEach((product, perStore) -> {
+                JsonObject stores = new JsonObject();
+                perStore.forEach((store, n) -> stores.addProperty(store, n[0]));
+                out.add(product, stores);
+            });
+            return out;
+        }
+    }
+
+    /** Unions the values of each key into a set. Values are JSON arrays, as the workers' combiner emits them. */
+    static class SetUnion implements TypedReducer {
+        private final Map<String, Set<String>> sets = new LinkedHashMap<>();
+
+        @Override
+        public void fold(String key, String value) {
+            Set<String> set = sets.computeIfAbsent(key, k -> new LinkedHashSet<>());
+            if (value == null) return;
+            for (JsonElement e : JsonParser.parseString(value).getAsJsonArray()) {
+                set.add(e.getAsString());
+            }
+        }
+
+        /** A mapper emits one name per pair. */
+        @Override
+        public void add(String key, String name) {
+            Set<String> set = sets.computeIfAbsent(key, k -> new LinkedHashSet<>());
+            if (name != null) set.add(name);
+        }
+
+        @Override
+        public JsonElement result() {
+            JsonObject out = new JsonObject();
+            sets.forEach((key, set) -> {
+                JsonArray arr = new JsonArray(set.size());
+                set.forEach(arr::add);
+                out.add(key, arr);
+            });
+            return out;
+        }
+    }
+
+    /**
+     * Keeps at most {@code limit} stores, the alphabetically first ones, so the
+     * result stays bounded and the same no matter in which order workers answer.
+     * Values are store JSON documents and are emitted as objects, not strings.
+     * If stores were left out, the result says so under {@link #TRUNCATED}.
+     */
+    static class BoundedSearch implements TypedReducer {
+        private final int limit;
+        private final TreeMap<String, String> stores = new TreeMap<>();
+        private long matches;
+
+        BoundedSearch(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void fold(String storeName, String storeJson) {
+            matches++;
+            if (stores.size() >= limit) {
+                if (storeName.compareTo(stores.lastKey()) >= 0) {
+                    return;
+                }
+                stores.pollLastEntry();
+            }
+            stores.put(storeName, storeJson);
+        }
+
+        @Override
+        public JsonElement result() {
+            JsonObject out = new JsonObject();
+            stores.forEach((name, json) -> {
+                try {
+                    out.add(name, JsonParser.parseString(json));
+                } catch (JsonSyntaxException e) {
+                    out.addProperty(name, json);
+                }
+            });
+            if (matches > stores.size()) {
+                out.add(TRUNCATED, truncated(stores.size(), matches));
+            }
+            return out;
+        }
+    }
+
+    /** Fallback: the values of each key joined with ", ". */
+    static class StringJoin implements TypedReducer {
+        private final Map<String, StringBuilder> joined = new LinkedHashMap<>();
+
+        @Override
+        public void fold(String key, String value) {
+            StringBuilder sb = joined.get(key);
+            if (sb == null) {
+                joined.put(key, new StringBuilder(String.valueOf(value)));
+            } else {
+                sb.append(", ").append(value);
+            }
+        }
+
+        @Override
+        public JsonElement result() {
+            JsonObject out = new JsonObject();
+            joined.forEach((key, sb) -> out.addProperty(key, sb.toString()));
+            return out;
+        }
+    }
+
+    private static JsonObject truncated(int returned, long total) {
+        JsonObject cut = new JsonObject();
+        cut.addProperty("returned", returned);
+        cut.addProperty("total", total);
+        return cut;
+    }
+
+    private static JsonObject parseObject(String value) {
+        JsonElement e = JsonParser.parseString(value);
+        return e.isJsonObject() ? e.getAsJsonObject() : new JsonObject();
+    }
+}
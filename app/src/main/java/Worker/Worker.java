@@ -1,7 +1,13 @@
 package Worker;
 
+import Master.HashRing;
 import Master.MasterServer;
+import Master.WorkerChannel;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import Manager.StoreManager;
 import Manager.ProductManager;
 import mapreduce.ClientCommandMapperReducer;
@@ -9,12 +15,31 @@ import mapreduce.ManagerCommandMapperReducer;
 import mapreduce.MapReduceFramework;
 import model.Product;
 import model.Store;
+import model.StoreJournal;
 import java.io.*;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.net.ServerSocket;
 import java.io.IOException;
 import Reduce.Reduce;
+import Reduce.ReduceHandler;
+import Reduce.TypedReducers;
+import catalog.BinaryCatalog;
+import catalog.CatalogSource;
+import catalog.JsonCatalog;
+import protocol.WireProtocol;
 
 /**
  * Worker node for the Freefooders system.
@@ -26,38 +51,209 @@ public class Worker {
     private final String masterHost = "localhost";  // Master address, optional
     private final int masterPort;
     private final int commandPort;
-    private StoreManager storeManager;
+    private final StoreManager storeManager = new StoreManager();
     private ProductManager productManager = new ProductManager();
-    private final List<Store> allStores = new ArrayList<>();
-    private int workerId = 0;    // defaults for standalone
-    private int totalWorkers = 1;
+    /** Where store definitions come from; opened by the first {@link #loadStores}. */
+    private volatile CatalogSource catalog;
+    /**
+     * The names of every store in the cluster (catalog and dynamically added),
+     * the only thing a worker keeps about stores it does not own.
+     */
+    private final Set<String> knownStores = ConcurrentHashMap.newKeySet();
+    /** Definitions of stores added at runtime, which no catalog has. */
+    private final Map<String, Store> addedStores = new ConcurrentHashMap<>();
+    /** State recovered from the log, waiting for the rebalance that tells whether it is still ours. */
+    private final Map<String, Store> recoveredStores = new ConcurrentHashMap<>();
+    /**
+     * Logged changes to stores that were not loaded when the log was
+     * replayed, as {kind, data}, oldest first. They are applied to the store's
+     * definition when this worker loads it after all.
+     */
+    private final Map<String, List<String[]>> parkedEffects = new ConcurrentHashMap<>();
+    private volatile int workerId = 0;    // defaults for standalone
+    private volatile int totalWorkers = 1;
+    /** This worker's name on the ring ({@code host:port} as the Master sees it). */
+    private volatile String nodeName;
+    private volatile HashRing ring;
     private final Gson gson = new Gson();
 
-    public Worker(int masterPort, int commandPort) {
+    /** How long a new owner waits for a store's live state before serving its own copy. */
+    public static final long HANDOFF_TIMEOUT_MS = Long.getLong("freefood.handoff.timeoutMs", 5_000L);
+    /** Most stores sent to one worker in a single STORE_HANDOFF. */
+    public static final int HANDOFF_BATCH = Integer.getInteger("freefood.handoff.batch", 256);
+    /** Gained stores whose live state is still on its way from the previous owner. */
+    private final Map<String, CountDownLatch> pendingHandoffs = new ConcurrentHashMap<>();
+    /** Live state handed to us before our own ring made us the owner. */
+    private final Map<String, Store> receivedHandoffs = new ConcurrentHashMap<>();
+    /**
+     * Gained stores whose handoff did not arrive in time, by previous owner.
+     * They are served read-only from our own copy until the live state
+     * arrives after all, or the previous owner leaves the ring.
+     */
+    private final Map<String, String> provisionalStores = new ConcurrentHashMap<>();
+    /**
+     * Stores this worker has handed off and the new owner has not acknowledged
+     * yet. They stay here, frozen, until it does, and are sent again meanwhile;
+     * a store that becomes ours again is served from here.
+     */
+    private final Map<String, Store> leavingStores = new ConcurrentHashMap<>();
+    /** Longest pause between two attempts to send unacknowledged handoffs. */
+    public static final long HANDOFF_RETRY_MAX_MS = Long.getLong("freefood.handoff.retryMaxMs", 30_000L);
+    /** How often shutdown tries to hand off stores before it leaves them in the log. */
+    private static final int SHUTDOWN_HANDOFF_ATTEMPTS = 3;
+    private final AtomicBoolean handoffRetryScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService handoffTimer =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "handoff-timer");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * Commands that may change a store, and so run through the write-ahead
+     * log; it records what they changed, if anything.
+     */
+    private static final Set<String> LOGGED_COMMANDS = Set.of(
+            "PURCHASE_PRODUCT", "PURCHASE_CART", "REVIEW",
+            "ADD_PRODUCT", "REMOVE_PRODUCT", "UPDATE_PRODUCT_AMOUNT",
+            "INCREMENT_PRODUCT_AMOUNT", "DECREMENT_PRODUCT_AMOUNT",
+            "ADD_STORE", "REMOVE_STORE", "STORE_HANDOFF");
+    /** Durable log of those commands, or null without {@code -Dfreefood.wal.dir}. */
+    private volatile WriteAheadLog wal;
+    /** Logs the changes of every store this worker serves. */
+    private final StoreJournal journal = new LogJournal();
+
+    /** Default size of the command pool, overridable with -Dfreefood.worker.threads=N. */
+    public static final int DEFAULT_COMMAND_THREADS =
+            Integer.getInteger("freefood.worker.threads",
+                    Runtime.getRuntime().availableProcessors() * 2);
+    /**
+     * Most commands and connections waiting for the command pool; past that,
+     * whoever submits waits, so the accept loop stops accepting and a channel
+     * stops reading. Overridable with -Dfreefood.worker.queue=N.
+     */
+    public static final int COMMAND_QUEUE = Integer.getInteger("freefood.worker.queue", 1_024);
+
+    /**
+     * Command suffix that makes reduce commands return their mapping in the
+     * CMD_RESPONSE, for a Master that runs the reducer in-process.
+     */
+    public static final String INLINE_REDUCE_SUFFIX = "(INLINE)";
+
+    /**
+     * Serves one-shot connections and executes the commands of persistent
+     * channels, with at most {@link #COMMAND_QUEUE} waiting; null means
+     * sequential (inline) mode.
+     */
+    private final ExecutorService commandExecutor;
+    /**
+     * Runs the read loops of persistent channels (the Master's, peers'),
+     * which last as long as the channel, so they get their own threads and
+     * never take a slot of the bounded command pool, nor, in sequential mode,
+     * the accept thread.
+     */
+    private final ExecutorService connectionExecutor;
+
+    /**
+     * Creates a worker.
+     *
+     * @param masterPort     port of the Master server
+     * @param commandPort    port on which this worker accepts commands
+     * @param commandThreads size of the bounded command pool; 0 or less runs
+     *                       one-shot commands inline on the accept thread, and
+     *                       the commands of a persistent channel on its own thread
+     */
+    public Worker(int masterPort, int commandPort, int commandThreads) {
         this.masterPort = masterPort;
         this.commandPort = commandPort;
+        this.commandExecutor = commandThreads > 0
+                ? new ThreadPoolExecutor(commandThreads, commandThreads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(COMMAND_QUEUE), r -> {
+                    Thread t = new Thread(r, "worker-cmd");
+                    t.setDaemon(true);
+                    return t;
+                }, (task, pool) -> {
+                    // back-pressure: the submitter waits for room instead of the work being dropped
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException("Command pool is shut down");
+                    }
+                    try {
+                        pool.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for the command pool", e);
+                    }
+                })
+                : null;
+        this.connectionExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "worker-conn");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public Worker(int masterPort, int commandPort) {
+        this(masterPort, commandPort, DEFAULT_COMMAND_THREADS);
     }
 
     public Worker() {
         this(12345, 20000);
     }
 
-    public static int getWorkerIdForStore(String storeName, int totalWorkers) {
-        if (totalWorkers <= 0) return 0;
-        return Math.abs(storeName.hashCode()) % totalWorkers;
+    /**
+     * Whether this worker owns a store on the ring pushed by the Master.
+     * Without a ring yet (or when running standalone) it owns everything.
+     */
+    public boolean shouldHandleStore(String storeName) {
+        HashRing r = ring;
+        if (r == null || r.isEmpty() || nodeName == null) {
+            return true;
+        }
+        return nodeName.equals(r.ownerOf(storeName));
     }
 
-    public boolean shouldHandleStore(String storeName) {
-        return getWorkerIdForStore(storeName, totalWorkers) == workerId;
+    /**
+     * Adopts the ring and this worker's node name from a {@code total|self|ringSpec} RELOAD.
+     *
+     * @return true if store ownership may have changed
+     */
+    private boolean applyMembership(String data) {
+        String[] p = data.split("\\|", 3);
+        totalWorkers = Integer.parseInt(p[0].trim());
+        if (p.length < 3) {
+            return true;
+        }
+        String self = p[1].trim();
+        String spec = p[2].trim();
+        HashRing current = ring;
+        if (self.equals(nodeName) && current != null && spec.equals(current.toSpec())) {
+            return false;
+        }
+        nodeName = self;
+        ring = HashRing.fromSpec(spec);
+        return true;
     }
 
     public String processCommand(String command, String data, String jobId) {
-        // dynamic add/remove updates the full list
+        // "(INLINE)" asks for the mapping itself instead of a hop through the reduce server
+        boolean inlineReduce = command.endsWith(INLINE_REDUCE_SUFFIX);
+        if (inlineReduce) {
+            command = command.substring(0, command.length() - INLINE_REDUCE_SUFFIX.length());
+        }
+
+        // dynamic add/remove updates the known stores, and this worker's shard if it owns the store
         if (command.contains("ADD_STORE")) {
             Store store = gson.fromJson(data, Store.class);
             store.setAveragePriceOfStore();
             store.setAveragePriceOfStoreSymbol();
-            allStores.add(store);
+            synchronized (this) {
+                knownStores.add(store.getStoreName());
+                addedStores.put(store.getStoreName(), store);
+                if (shouldHandleStore(store.getStoreName())) {
+                    adopt(store);
+                }
+                record("ADD_STORE", data);
+            }
             return gson.toJson(Collections.singletonList(
                     new MapReduceFramework.Pair<>(store.getStoreName(),
                             "Store " + store.getStoreName() + " added.")
@@ -65,7 +261,16 @@ public class Worker {
         }
         if (command.contains("REMOVE_STORE")) {
             String storeName = data.trim();
-            boolean removed = allStores.removeIf(s -> s.getStoreName().equals(storeName));
+            boolean removed;
+            synchronized (this) {
+                removed = knownStores.remove(storeName);
+                addedStores.remove(storeName);
+                boolean held = storeManager.getStore(storeName) != null;
+                storeManager.removeStore(storeName);
+                if (removed || held) {
+                    record("REMOVE_STORE", storeName);
+                }
+            }
             String msg = removed
                     ? "Store " + storeName + " removed."
                     : "Store " + storeName + " not found.";
@@ -100,10 +305,18 @@ public class Worker {
 
 
         if (command.equalsIgnoreCase("SEARCH")) {
-            // Client commands: process over all local stores.
+            // Client commands: process over the index candidates for the
+            // filter, or over all local stores if the filter has no index.
             Map<String, Store> localStores = storeManager.getAllStores();
-            for (Map.Entry<String, Store> entry : localStores.entrySet()) {
-                input.add(new MapReduceFramework.Pair<>(entry.getKey(), entry.getValue()));
+            List<Store> candidates = searchCandidates(data);
+            if (candidates != null) {
+                for (Store s : candidates) {
+                    input.add(new MapReduceFramework.Pair<>(s.getStoreName(), s));
+                }
+            } else {
+                for (Map.Entry<String, Store> entry : localStores.entrySet()) {
+                    input.add(new MapReduceFramework.Pair<>(entry.getKey(), entry.getValue()));
+                }
             }
             ClientCommandMapperReducer.ClientCommandMapper mapper =
                     new ClientCommandMapperReducer.ClientCommandMapper(command, data, localStores);
@@ -112,11 +325,10 @@ public class Worker {
                 intermediate.addAll(mapper.map(pair.getKey(), pair.getValue()));
             }
 
-            String mappingResult = gson.toJson(intermediate);
-            if (needsReduce) {
-                return sendToReduceServer(command, mappingResult, jobId);
+            if (needsReduce && !inlineReduce) {
+                return sendToReduceServer(command, intermediate, jobId);
             } else {
-                return mappingResult;
+                return gson.toJson(intermediate);
             }
         }
         else if (command.equalsIgnoreCase("AGGREGATE_SALES_BY_PRODUCT_NAME")) {
@@ -132,8 +344,10 @@ public class Worker {
                     intermediate.addAll(mapper.map(pair.getKey(), pair.getValue()));
                 }
             }
-            String mappingResult = gson.toJson(intermediate);
-            return sendToReduceServer(command, mappingResult, jobId);
+            // combine locally: one compact pair per product instead of one per store
+            List<MapReduceFramework.Pair<String, String>> combined = MapReduceFramework.combine(intermediate,
+                    TypedReducers.combiner(command));
+            return inlineReduce ? gson.toJson(combined) : sendToReduceServer(command, combined, jobId);
         }
         else if (command.equalsIgnoreCase("REVIEW")) {
             // For REVIEW, process only the target store.
@@ -181,6 +395,22 @@ public class Worker {
                 intermediate.addAll(mapper.map(pair.getKey(), pair.getValue()));
             }
             return gson.toJson(intermediate);
+        } else if (command.equalsIgnoreCase("PURCHASE_CART")) {
+            // One store, several products: applied to that store all-or-nothing.
+            String[] parts = data.split("\\|", 2);
+            if (parts.length < 2) {
+                return gson.toJson(Collections.singletonList(
+                        new MapReduceFramework.Pair<>("ERROR", "Invalid data for PURCHASE_CART.")));
+            }
+            String storeName = parts[0].trim();
+            Store store = storeManager.getStore(storeName);
+            if (store == null) {
+                return gson.toJson(Collections.singletonList(
+                        new MapReduceFramework.Pair<>("ERROR", "Store " + storeName + " not found.")));
+            }
+            ClientCommandMapperReducer.ClientCommandMapper mapper =
+                    new ClientCommandMapperReducer.ClientCommandMapper(command, data, storeManager.getAllStores());
+            return gson.toJson(mapper.map(data, store));
         } else if ("GET_LOGO".equalsIgnoreCase(command)) {
             // data == storeName
             String storeName = data.trim();
@@ -228,17 +458,16 @@ public class Worker {
                         intermediate.add(new MapReduceFramework.Pair<>("LIST_STORES", storeName));
                     }
                 } else { // DELETED_PRODUCTS
-                    // only send a mapping if there are actual deletions
-                    String report = productManager.getDeletedProductsReport();
-                    if (report != null
-                            && !report.trim().isEmpty()
-                            && !report.startsWith("No products have been deleted")) {
-                        intermediate.add(new MapReduceFramework.Pair<>("DELETED_PRODUCTS", report));
+                    // one pair per deleted name; nothing at all if there were no deletions
+                    for (String productName : productManager.getDeletedProducts()) {
+                        intermediate.add(new MapReduceFramework.Pair<>("DELETED_PRODUCTS", productName));
                     }
                 }
 
-                String mappingResult = gson.toJson(intermediate);
-                return sendToReduceServer(command, mappingResult, jobId);
+                // combine locally: one JSON array of names instead of one pair per store
+                List<MapReduceFramework.Pair<String, String>> combined = MapReduceFramework.combine(intermediate,
+                        TypedReducers.combiner(command));
+                return inlineReduce ? gson.toJson(combined) : sendToReduceServer(command, combined, jobId);
             } else if (command.equalsIgnoreCase("ADD_PRODUCT") ||
                     command.equalsIgnoreCase("REMOVE_PRODUCT") ||
                     command.equalsIgnoreCase("UPDATE_PRODUCT_AMOUNT") ||
@@ -269,91 +498,809 @@ public class Worker {
     }
 
     /**
-     * Sends mapping results to the reduce server for commands that require reduction.
+     * Sends mapping results to the reduce tier for commands that require reduction.
+     * The pairs are split by key across {@link Reduce#REDUCERS}; every reducer
+     * gets a partial from every worker, even an empty one, so each can tell when
+     * it has heard from all workers. A reducer that cannot be reached does not
+     * stop the others from getting their shares.
      *
      * @param command        the command name
+     * @param intermediate   this worker's (combined) mapping
      * @param jobId          the unique job ID for this operation
-     * @return status message as JSON
+     * @return status message as JSON, or an error listing every reducer that
+     *         could not be reached under {@link ReduceHandler#UNREACHABLE_REDUCERS}
      */
-    private String sendToReduceServer(String command, String mappingJson, String jobId) {
+    private String sendToReduceServer(String command,
+                                      List<MapReduceFramework.Pair<String, String>> intermediate,
+                                      String jobId) {
         int expectedCount = this.totalWorkers;
-        String reduceHost = "localhost";
-        int reducePort = Reduce.REDUCE_PORT;
-        try (Socket socket = new Socket(reduceHost, reducePort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(jobId);
-            out.println(command);
-            out.println(expectedCount);
-            out.println(mappingJson);
-        } catch (IOException e) {
-            return "{\"error\":\"Error connecting to reduce server: "
-                    + e.getMessage() + "\"}";
-        }
-        return "{\"status\":\"Mapping output sent\"}";
-    }
-    /**
-     * Loads store JSON resources and partitions them based on workerId and totalWorkers.
-     * Initializes the StoreManager with the partition assigned to this worker.
-     */
-    public void loadStores() {
-        // initial JSON load
-        if (allStores.isEmpty()) {
-            String[] storeFiles = {
-                    "/jsonf/stores/PizzaWorld.json",
-                    "/jsonf/stores/CoffeeCorner.json",
-                    "/jsonf/stores/SouvlakiKing.json",
-                    "/jsonf/stores/BurgerZone.json",
-                    "/jsonf/stores/BakeryDelight.json",
-                    "/jsonf/stores/AsiaFusion.json",
-                    "/jsonf/stores/TacoPlace.json",
-                    "/jsonf/stores/SeaFoodExpress.json",
-                    "/jsonf/stores/VeganGarden.json",
-                    "/jsonf/stores/SweetTooth.json"
-            };
-            for (String fileName : storeFiles) {
-                InputStream is = Worker.class.getResourceAsStream(fileName);
-                if (is == null) {
-                    System.err.println("Resource not found: " + fileName);
-                    continue;
-                }
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-                    StringBuilder sb = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        sb.append(line);
+        List<Reduce.Endpoint> reducers = Reduce.REDUCERS;
+        List<List<MapReduceFramework.Pair<String, String>>> shares = new ArrayList<>(reducers.size());
+        for (int i = 0; i < reducers.size(); i++) {
+            shares.add(new ArrayList<>());
+        }
+        for (MapReduceFramework.Pair<String, String> pair : intermediate) {
+            shares.get(Reduce.partitionOf(pair.getKey(), reducers.size())).add(pair);
+        }
+        JsonArray unreachable = new JsonArray();
+        StringJoiner errors = new StringJoiner("; ");
+        for (int i = 0; i < reducers.size(); i++) {
+            Reduce.Endpoint reducer = reducers.get(i);
+            String mappingJson = gson.toJson(shares.get(i));
+            try {
+                if (WireProtocol.ENABLED) {
+                    WireProtocol.sendOneWay(reducer.host, reducer.port, command,
+                            expectedCount + "\n" + workerId + "\n" + mappingJson, jobId);
+                } else {
+                    try (Socket socket = new Socket(reducer.host, reducer.port);
+                         PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                        out.println(jobId);
+                        out.println(command);
+                        out.println(expectedCount);
+                        out.println(workerId);
+                        out.println(mappingJson);
                     }
-                    Store store = gson.fromJson(sb.toString(), Store.class);
-                    if (store != null) {
-                        allStores.add(store);
+                }
+            } catch (IOException e) {
+                unreachable.add(reducer.toString());
+                errors.add(reducer + ": " + e.getMessage());
+            }
+        }
+        if (unreachable.isEmpty()) {
+            return "{\"status\":\"Mapping output sent\"}";
+        }
+        System.err.println("Mapping for " + jobId + " not delivered to " + errors);
+        JsonObject error = new JsonObject();
+        error.addProperty("error", "Error connecting to reduce servers " + errors);
+        error.add(ReduceHandler.UNREACHABLE_REDUCERS, unreachable);
+        return error.toString();
+    }
+
+    /**
+     * Looks up the stores a SEARCH can match from the StoreManager's indexes,
+     * so that the mapper only sees candidates instead of every local store.
+     *
+     * @param data the search filter, e.g. {@code FoodCategory=pizzeria} or
+     *             {@code Radius=radius,lon,lat}
+     * @return the candidate stores, or null if the filter has no index (or is
+     *         malformed) and every store must be scanned
+     */
+    private List<Store> searchCandidates(String data) {
+        String[] filter = data.split("=", 2);
+        if (filter.length != 2) {
+            return null;
+        }
+        String value = filter[1].trim();
+        try {
+            switch (filter[0].trim().toLowerCase()) {
+                case "foodcategory":
+                    return storeManager.getStoresByCategory(value);
+                case "stars":
+                    return storeManager.getStoresByStars(Integer.parseInt(value));
+                case "avgprice":
+                    return storeManager.getStoresByPriceTier("$".repeat(Integer.parseInt(value)));
+                case "radius": {
+                    String[] parts = value.split(",");
+                    if (parts.length != 3) {
+                        return null;
                     }
-                } catch (IOException e) {
-                    System.err.println("Error loading store from " + fileName + ": " + e.getMessage());
+                    int    radius = Integer.parseInt(parts[0].trim());
+                    double lon    = Double.parseDouble(parts[1].trim());
+                    double lat    = Double.parseDouble(parts[2].trim());
+                    return storeManager.getStoresWithinRadius(lat, lon, radius);
                 }
+                default:
+                    return null;
             }
+        } catch (IllegalArgumentException e) {
+            return null;
         }
+    }
+
+    /** Classpath directory of the bundled store files, the catalog when no {@code -Dfreefood.catalog} is given. */
+    private static final String STORE_RESOURCES = "/jsonf/stores";
+
+    /**
+     * Opens the catalog (once) and brings the StoreManager in line with the
+     * stores this worker owns on the ring. Only owned stores are loaded in
+     * full; of the others the worker keeps just the name.
+     */
+    public synchronized void loadStores() {
+        openCatalog();
 
-        // partition from full list using hash-based mapping
-        List<Store> partitionStores = new ArrayList<>();
         if (totalWorkers <= 0) {
             totalWorkers = 1;
         }
-        for (Store s : allStores) {
-            // Use the consistent hashing method
-            if (shouldHandleStore(s.getStoreName())) {
-                s.setAveragePriceOfStore();
-                s.setAveragePriceOfStoreSymbol();
-                partitionStores.add(s);
+        // we just joined: the stores we gain come from the ring without us
+        HashRing r = ring;
+        rebalance(r == null || nodeName == null ? null : r.without(nodeName));
+    }
+
+    /**
+     * Opens the catalog named by {@code -Dfreefood.catalog}, or else the
+     * bundled store files, and learns the names of its stores.
+     */
+    private synchronized void openCatalog() {
+        if (catalog != null) return;
+        long start = System.nanoTime();
+        CatalogSource source = null;
+        if (BinaryCatalog.PATH != null) {
+            try {
+                source = CatalogSource.open(Path.of(BinaryCatalog.PATH));
+            } catch (IOException e) {
+                System.err.println("Cannot open catalog " + BinaryCatalog.PATH
+                        + ", using the bundled stores: " + e.getMessage());
+            }
+        }
+        if (source == null) {
+            try {
+                source = JsonCatalog.ofResources(Worker.class, STORE_RESOURCES);
+            } catch (IOException e) {
+                System.err.println("Cannot read the bundled stores: " + e.getMessage());
+                return;
+            }
+        }
+        knownStores.addAll(source.names());
+        catalog = source;
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("Indexed %s in %d ms (%d stores/s)%n",
+                source, ms, knownStores.size() * 1000L / Math.max(ms, 1));
+    }
+
+    /**
+     * A fresh definition of a store this worker is about to own: state
+     * recovered from the log if there is any, else the runtime definition of
+     * an added store, else the catalog's.
+     *
+     * @return the store, or null if it is unknown
+     */
+    private Store definitionOf(String storeName) {
+        Store s = recoveredStores.remove(storeName);
+        if (s != null) return s;
+        s = addedStores.get(storeName);
+        if (s == null && catalog != null) s = catalog.load(storeName);
+        return s == null ? null : withParkedEffects(s);
+    }
+
+    /**
+     * Fresh definitions of many stores, as {@link #definitionOf} would give
+     * them; the ones that come from the catalog are decoded in parallel.
+     *
+     * @return the stores found, unknown names left out
+     */
+    private List<Store> definitionsOf(List<String> storeNames) {
+        List<Store> stores = new ArrayList<>(storeNames.size());
+        List<String> fromCatalog = new ArrayList<>();
+        for (String name : storeNames) {
+            Store s = recoveredStores.remove(name);
+            if (s == null && (s = addedStores.get(name)) != null) withParkedEffects(s);
+            if (s != null) stores.add(s); else fromCatalog.add(name);
+        }
+        if (catalog == null || fromCatalog.isEmpty()) return stores;
+
+        long start = System.nanoTime();
+        Map<String, Store> loaded = catalog.loadAll(fromCatalog);
+        loaded.values().forEach(this::withParkedEffects);
+        stores.addAll(loaded.values());
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("Loaded %d stores from the catalog in %d ms (%d stores/s)%n",
+                loaded.size(), ms, loaded.size() * 1000L / Math.max(ms, 1));
+        return stores;
+    }
+
+    /**
+     * Brings the StoreManager in line with the ring, in place: adopts the
+     * stores this worker now owns and drops the ones it no longer owns (or
+     * that were removed). Stores that stay put are not touched, so their
+     * index entries and in-flight purchases are unaffected.
+     * <p>
+     * A store that moves to another live worker is handed off to it with its
+     * live state. A store that this worker gains from a live previous owner is
+     * held back until that owner's handoff arrives (see {@link #acceptHandoff}).
+     *
+     * @param previous the ring before this change, or null if unknown
+     */
+    private synchronized void rebalance(HashRing previous) {
+        int added = 0, dropped = 0, awaiting = 0;
+        Map<String, List<Store>> outgoing = new HashMap<>();      // new owner -> stores
+        List<String> gained = new ArrayList<>();                  // owned, nobody hands them to us
+        for (String name : knownStores) {
+            boolean owned = shouldHandleStore(name);
+            boolean held  = storeManager.getStore(name) != null;
+            if (owned && !held) {
+                Store live = receivedHandoffs.remove(name);
+                Store unsent = leavingStores.remove(name);
+                if (live != null) {
+                    install(live);
+                    added++;
+                } else if (unsent != null) {
+                    // nobody acknowledged our handoff, so our copy is still the live one
+                    unsent.setFrozen(false);
+                    adopt(unsent);
+                    added++;
+                } else if (pendingHandoffs.containsKey(name)) {
+                    awaiting++;
+                } else if (expectsHandoff(previous, name)) {
+                    awaitHandoffFrom(name, previous.ownerOf(name));
+                    awaiting++;
+                } else {
+                    gained.add(name);
+                }
+            } else if (!owned && held) {
+                Store leaving = storeManager.getStore(name);
+                storeManager.removeStore(name);
+                // frozen first: an order still holding the store fails rather than being lost
+                leaving.freeze();
+                String newOwner = ring == null ? null : ring.ownerOf(name);
+                // a read-only stand-in is not live state; its previous owner still sends the real one
+                boolean standIn = provisionalStores.remove(name) != null;
+                if (newOwner != null && !newOwner.equals(nodeName) && !standIn) {
+                    leavingStores.put(name, leaving);
+                    outgoing.computeIfAbsent(newOwner, k -> new ArrayList<>()).add(leaving);
+                }
+                dropped++;
+            } else if (owned && held) {
+                String from = provisionalStores.get(name);
+                if (from != null && (ring == null || !ring.nodes().contains(from))) {
+                    // the previous owner is gone, and its live state with it
+                    provisionalStores.remove(name);
+                    storeManager.getStore(name).setFrozen(false);
+                    System.err.println(from + " left before handing off " + name + "; our copy takes orders again");
+                }
+            }
+        }
+        for (Store s : definitionsOf(gained)) {
+            adopt(s);
+            added++;
+        }
+        for (String name : new ArrayList<>(storeManager.getAllStores().keySet())) {
+            if (!knownStores.contains(name)) {
+                storeManager.removeStore(name);
+                dropped++;
+            }
+        }
+        if (!outgoing.isEmpty()) {
+            // hand off off the RELOAD thread; the stores are already out of our manager
+            new Thread(() -> {
+                if (handOffAll(outgoing) < outgoing.values().stream().mapToInt(List::size).sum()) {
+                    scheduleHandoffRetry(1);
+                }
+            }, "store-handoff").start();
+        }
+        System.out.println("Worker " + workerId + " holds " + storeManager.getAllStores().size()
+                + " stores out of " + knownStores.size() + " (+" + added + " -" + dropped
+                + (awaiting > 0 ? ", awaiting " + awaiting + " handoffs" : "") + ")");
+    }
+
+    /** Adds a store this worker owns to the StoreManager, logging its changes from now on. */
+    private void adopt(Store s) {
+        s.setAveragePriceOfStore();
+        s.setAveragePriceOfStoreSymbol();
+        s.setJournal(journal);
+        storeManager.addStore(s);
+    }
+
+    /* ---------- live state handoff ---------- */
+
+    /** Whether a gained store's previous owner is still alive and will hand it off. */
+    private boolean expectsHandoff(HashRing previous, String storeName) {
+        if (previous == null || ring == null) return false;
+        String before = previous.ownerOf(storeName);
+        return before != null && !before.equals(nodeName) && ring.nodes().contains(before);
+    }
+
+    /**
+     * Holds a gained store back until its live state arrives. If it has not
+     * arrived within {@link #HANDOFF_TIMEOUT_MS}, the local copy is served,
+     * frozen, so that the live state can still replace it when it comes.
+     *
+     * @param from the previous owner, which is to send the live state
+     */
+    private void awaitHandoffFrom(String storeName, String from) {
+        CountDownLatch latch = new CountDownLatch(1);
+        pendingHandoffs.put(storeName, latch);
+        handoffTimer.schedule(() -> {
+            synchronized (this) {
+                if (!pendingHandoffs.remove(storeName, latch)) return;
+                if (shouldHandleStore(storeName) && storeManager.getStore(storeName) == null) {
+                    Store s = definitionOf(storeName);
+                    if (s != null) {
+                        s.setFrozen(true);
+                        provisionalStores.put(storeName, from);
+                        adopt(s);
+                    }
+                }
+                System.err.println("No handoff for " + storeName + " within "
+                        + HANDOFF_TIMEOUT_MS + " ms; serving the local copy read-only until it arrives");
+            }
+            latch.countDown();
+        }, HANDOFF_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Blocks a command on a store whose handoff is still in flight, so that it
+     * is served from the live state rather than a stale copy.
+     *
+     * @param data the command's data; stores are named in its first field
+     */
+    private void awaitPendingHandoff(String data) {
+        if (data == null || pendingHandoffs.isEmpty()) return;
+        CountDownLatch latch = pendingHandoffs.get(data.split("\\|", 2)[0].trim());
+        if (latch == null) return;
+        try {
+            latch.await(HANDOFF_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Receives a store's live state from its previous owner (STORE_HANDOFF).
+     * If our own ring has not caught up yet, the state is kept until the
+     * rebalance that makes us the owner.
+     *
+     * @return the acknowledgement sent back to the previous owner
+     */
+    private synchronized String acceptHandoff(String json) {
+        List<Store> stores = handedOffStores(json);
+        StringJoiner taken = new StringJoiner(",", "[", "]");
+        int accepted = 0;
+        for (Store live : stores) {
+            String name = live.getStoreName();
+            CountDownLatch latch = pendingHandoffs.remove(name);
+            if (latch != null) {
+                install(live);
+                latch.countDown();
+            } else if (provisionalStores.remove(name) != null) {
+                // we gave up waiting, but our copy has been read-only since: nothing is lost
+                install(live);
+                System.err.println("Late handoff for " + name + " replaced the read-only copy");
+            } else if (storeManager.getStore(name) != null) {
+                System.err.println("Handoff for " + name + ", which we already serve, ignored");
+                continue;
+            } else {
+                receivedHandoffs.put(name, live);
             }
+            parkedEffects.remove(name);
+            taken.add(live.toJson());
+            accepted++;
+        }
+        if (accepted > 0) {
+            record("STORE_HANDOFF", taken.toString());
         }
+        System.out.println("Worker " + workerId + " took over live state of "
+                + (stores.size() == 1 && accepted == 1 ? stores.get(0).getStoreName() : accepted + " stores"));
+        return "{\"status\":\"Handoff of " + accepted + " of " + stores.size() + " stores accepted\"}";
+    }
 
-        storeManager = new StoreManager();
-        for (Store s : partitionStores) {
-            storeManager.addStore(s);
+    /** The stores of a STORE_HANDOFF: one store document, or an array of them. */
+    private List<Store> handedOffStores(String json) {
+        JsonElement e = JsonParser.parseString(json);
+        List<Store> stores = new ArrayList<>();
+        if (e.isJsonArray()) {
+            for (JsonElement s : e.getAsJsonArray()) {
+                stores.add(gson.fromJson(s, Store.class));
+            }
+        } else {
+            stores.add(gson.fromJson(e, Store.class));
         }
+        return stores;
+    }
 
-        System.out.println("Worker " + workerId + " loaded " +
-                partitionStores.size() + " stores out of " +
-                allStores.size());
+    /** Makes a handed-off store the one this worker knows and serves. */
+    private void install(Store live) {
+        String name = live.getStoreName();
+        knownStores.add(name);
+        Store stale = storeManager.getStore(name);
+        if (stale != null) {
+            stale.setFrozen(true);      // in case someone still holds it
+            storeManager.removeStore(name);
+        }
+        adopt(live);
+    }
+
+    /**
+     * Sends stores' live state to their new owners, up to {@link #HANDOFF_BATCH}
+     * stores per message, so that moving thousands of stores does not take
+     * thousands of round trips. A store the new owner acknowledges leaves
+     * {@link #leavingStores}; the others stay there for the next attempt.
+     *
+     * @param byOwner new owner node to the (frozen) stores it takes over
+     * @return the number of stores acknowledged
+     */
+    private int handOffAll(Map<String, List<Store>> byOwner) {
+        int handed = 0;
+        for (Map.Entry<String, List<Store>> e : byOwner.entrySet()) {
+            List<Store> stores = e.getValue();
+            for (int i = 0; i < stores.size(); i += HANDOFF_BATCH) {
+                List<Store> batch = stores.subList(i, Math.min(stores.size(), i + HANDOFF_BATCH));
+                StringJoiner payload = batch.size() == 1
+                        ? new StringJoiner(",") : new StringJoiner(",", "[", "]");
+                batch.forEach(st -> payload.add(st.toJson()));
+                if (handOff(e.getKey(), batch.size() + (batch.size() == 1 ? " store" : " stores"),
+                        payload.toString())) {
+                    acknowledged(batch);
+                    handed += batch.size();
+                }
+            }
+        }
+        return handed;
+    }
+
+    /** Forgets stores whose new owner has acknowledged them, durably, so that recovery does not send them again. */
+    private void acknowledged(List<Store> stores) {
+        JsonArray names = new JsonArray();
+        stores.forEach(st -> names.add(st.getStoreName()));
+        Supplier<Boolean> forget = () -> {
+            stores.forEach(st -> leavingStores.remove(st.getStoreName(), st));
+            record("HANDOFF_ACKED", names.toString());
+            return true;
+        };
+        WriteAheadLog log = wal;
+        if (log == null) {
+            forget.get();
+            return;
+        }
+        try {
+            log.apply(true, forget);
+        } catch (UncheckedIOException e) {
+            System.err.println("Write-ahead log write failed: " + e.getMessage());
+        }
+    }
+
+    /** The unacknowledged stores, by their owner on a ring; those it gives back to us are left out. */
+    private Map<String, List<Store>> unacknowledgedHandoffs(HashRing r) {
+        Map<String, List<Store>> byOwner = new HashMap<>();
+        for (Store st : leavingStores.values()) {
+            String owner = r == null ? null : r.ownerOf(st.getStoreName());
+            if (owner != null && !owner.equals(nodeName)) {
+                byOwner.computeIfAbsent(owner, k -> new ArrayList<>()).add(st);
+            }
+        }
+        return byOwner;
+    }
+
+    /**
+     * Sends the unacknowledged handoffs again after a pause that grows with
+     * every failed attempt, to whoever owns the stores by then, until all of
+     * them are acknowledged. A store the ring gives back to this worker is
+     * served again by the rebalance that does so.
+     */
+    private void scheduleHandoffRetry(int attempt) {
+        if (!handoffRetryScheduled.compareAndSet(false, true)) return;
+        long delay = Math.min(HANDOFF_RETRY_MAX_MS, 1_000L << Math.min(attempt - 1, 20));
+        handoffTimer.schedule(() -> new Thread(() -> {
+            handoffRetryScheduled.set(false);
+            Map<String, List<Store>> byOwner;
+            synchronized (this) {
+                byOwner = unacknowledgedHandoffs(ring);
+            }
+            int total = byOwner.values().stream().mapToInt(List::size).sum();
+            if (total == 0) return;
+            System.err.println("Sending " + total + " unacknowledged handoffs again (attempt " + (attempt + 1) + ")");
+            if (handOffAll(byOwner) < total) {
+                scheduleHandoffRetry(attempt + 1);
+            }
+        }, "store-handoff").start(), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends one STORE_HANDOFF to a new owner and waits for the acknowledgement.
+     *
+     * @param what     what is handed off, for the log
+     * @param payload  a store document or an array of them
+     * @return true if the new owner acknowledged it
+     */
+    private boolean handOff(String node, String what, String payload) {
+        int colon = node.lastIndexOf(':');
+        String host = node.substring(0, colon);
+        int port = Integer.parseInt(node.substring(colon + 1));
+        String jobId = UUID.randomUUID().toString();
+        try {
+            String reply;
+            if (WireProtocol.ENABLED) {
+                reply = WireProtocol.request(host, port, "STORE_HANDOFF", payload, jobId,
+                        (int) HANDOFF_TIMEOUT_MS);
+            } else {
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setSoTimeout((int) HANDOFF_TIMEOUT_MS);
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    out.println("STORE_HANDOFF");
+                    out.println(payload);
+                    out.println(jobId);
+                    reply = in.readLine();
+                }
+            }
+            System.out.println("Handed off " + what + " to " + node + ": " + reply);
+            return reply != null;
+        } catch (IOException e) {
+            System.err.println("Handoff of " + what + " to " + node + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Leaves the cluster gracefully: hands every store off to the worker that
+     * will own it once this one is gone, then deregisters from the Master.
+     */
+    public void shutdown() {
+        HashRing r = ring;
+        if (r != null && nodeName != null && r.nodes().size() > 1) {
+            HashRing after = r.without(nodeName);
+            synchronized (this) {
+                for (Store s : new ArrayList<>(storeManager.getAllStores().values())) {
+                    storeManager.removeStore(s.getStoreName());
+                    if (!provisionalStores.containsKey(s.getStoreName())) {
+                        s.freeze();
+                        leavingStores.put(s.getStoreName(), s);
+                    }
+                }
+            }
+            int handed = 0;
+            for (int attempt = 1; attempt <= SHUTDOWN_HANDOFF_ATTEMPTS && !leavingStores.isEmpty(); attempt++) {
+                if (attempt > 1) {
+                    try {
+                        Thread.sleep(1_000L << (attempt - 2));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                handed += handOffAll(unacknowledgedHandoffs(after));
+            }
+            System.out.println("Worker " + workerId + " handed off " + handed + " stores"
+                    + (leavingStores.isEmpty() ? "" : "; " + leavingStores.size() + " were not acknowledged"));
+        }
+        sendTerminationCommand();
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    /* ---------- write-ahead log ---------- */
+
+    /**
+     * Restores the state this worker had when it last stopped: the latest
+     * snapshot plus the changes logged after it. Runs before the handshake,
+     * while there is no ring and every store is ours. Changes to a store that
+     * is not loaded are parked until it is, rather than loading it now. The
+     * recovered stores are then set aside, and the rebalance after the
+     * handshake serves those that are still this worker's, unless a live
+     * previous owner hands over newer state; unacknowledged handoffs are sent
+     * again.
+     */
+    private synchronized void recover() {
+        if (WriteAheadLog.DIR == null) return;
+        try {
+            WriteAheadLog log = WriteAheadLog.open(Path.of(WriteAheadLog.DIR, "worker-" + commandPort));
+            openCatalog();
+            long start = System.nanoTime();
+            int replayed = log.recover(this::restoreSnapshot, this::replay);
+            for (Store s : new ArrayList<>(storeManager.getAllStores().values())) {
+                storeManager.removeStore(s.getStoreName());
+                recoveredStores.put(s.getStoreName(), s);
+            }
+            log.start(this::snapshotState);
+            wal = log;
+            System.out.printf("Worker recovered %d stores, replayed %d logged changes in %d ms%n",
+                    recoveredStores.size(), replayed, (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Write-ahead log unavailable, running without it: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Renders the state a snapshot keeps: the live state of the stores this
+     * worker serves or has been handed, the stores it is handing off and the
+     * deleted product names. Which stores exist is the Master's to say; it
+     * replays added and removed stores at the handshake.
+     */
+    private synchronized String snapshotState() {
+        StringBuilder sb = new StringBuilder("{\"deletedProducts\":")
+                .append(gson.toJson(productManager.getDeletedProducts()));
+        StringJoiner stores = new StringJoiner(",", ",\"stores\":[", "]");
+        storeManager.getAllStores().values().forEach(s -> stores.add(s.toJson()));
+        receivedHandoffs.values().forEach(s -> stores.add(s.toJson()));
+        StringJoiner leaving = new StringJoiner(",", ",\"leavingStores\":[", "]");
+        leavingStores.values().forEach(s -> leaving.add(s.toJson()));
+        return sb.append(stores).append(leaving).append('}').toString();
+    }
+
+    /** Restores a snapshot's stores over their catalog copies. */
+    private void restoreSnapshot(String json) {
+        JsonObject state = JsonParser.parseString(json).getAsJsonObject();
+        for (JsonElement e : state.getAsJsonArray("stores")) {
+            install(gson.fromJson(e, Store.class));
+        }
+        if (state.has("leavingStores")) {
+            for (JsonElement e : state.getAsJsonArray("leavingStores")) {
+                Store s = gson.fromJson(e, Store.class);
+                s.setFrozen(true);
+                leavingStores.put(s.getStoreName(), s);
+            }
+        }
+        List<String> deleted = new ArrayList<>();
+        state.getAsJsonArray("deletedProducts").forEach(e -> deleted.add(e.getAsString()));
+        productManager.setDeletedProducts(deleted);
+    }
+
+    /**
+     * Applies one logged change again during recovery. The set of stores
+     * changes by ADD_STORE, REMOVE_STORE, STORE_HANDOFF and HANDOFF_ACKED
+     * records; a store's own changes are those its {@link LogJournal} wrote.
+     */
+    private void replay(String kind, String data) {
+        switch (kind) {
+            case "ADD_STORE":
+                parkedEffects.remove(gson.fromJson(data, Store.class).getStoreName());
+                processCommand(kind, data, "replay");
+                return;
+            case "REMOVE_STORE":
+                parkedEffects.remove(data.trim());
+                processCommand(kind, data, "replay");
+                return;
+            case "STORE_HANDOFF":
+                for (Store s : handedOffStores(data)) {
+                    parkedEffects.remove(s.getStoreName());
+                    leavingStores.remove(s.getStoreName());
+                    install(s);
+                }
+                return;
+            case "HANDOFF_ACKED":
+                JsonParser.parseString(data).getAsJsonArray()
+                        .forEach(e -> leavingStores.remove(e.getAsString()));
+                return;
+            case "SOLD": case "STOCK_CHANGED": case "REVIEWED": case "PRODUCT_ADDED": case "PRODUCT_REMOVED":
+                break;
+            default:
+                System.err.println("Unknown record " + kind + " in the write-ahead log, skipped");
+                return;
+        }
+        JsonObject effect = JsonParser.parseString(data).getAsJsonObject();
+        String name = effect.get("Store").getAsString();
+        Store s = storeManager.getStore(name);
+        if (s == null && (s = leavingStores.remove(name)) != null) {
+            // the handoff was never acknowledged and the store became ours again
+            s.setFrozen(false);
+            adopt(s);
+        }
+        if (s == null) {
+            parkedEffects.computeIfAbsent(name, k -> new ArrayList<>()).add(new String[]{kind, data});
+        } else {
+            applyEffect(s, kind, effect);
+        }
+    }
+
+    /** Applies the changes parked for a store to its definition, which is about to be adopted. */
+    private Store withParkedEffects(Store s) {
+        List<String[]> effects = parkedEffects.remove(s.getStoreName());
+        if (effects != null) {
+            s.setJournal(null);         // already logged; adopt() attaches it again
+            for (String[] e : effects) {
+                applyEffect(s, e[0], JsonParser.parseString(e[1]).getAsJsonObject());
+            }
+        }
+        return s;
+    }
+
+    /** Makes a store's logged change again; see {@link LogJournal} for the records. */
+    private void applyEffect(Store s, String kind, JsonObject effect) {
+        switch (kind) {
+            case "SOLD":
+                for (JsonElement e : effect.getAsJsonArray("Lines")) {
+                    JsonObject line = e.getAsJsonObject();
+                    s.applySale(line.get("ProductName").getAsString(), line.get("ProductType").getAsString(),
+                            line.get("Quantity").getAsInt(), line.get("Price").getAsDouble());
+                }
+                break;
+            case "STOCK_CHANGED":
+                s.applyStockChange(effect.get("Product").getAsString(), effect.get("Delta").getAsInt());
+                break;
+            case "REVIEWED":
+                s.applyRating(effect.get("Stars").getAsInt(), effect.get("Votes").getAsInt());
+                break;
+            case "PRODUCT_ADDED":
+                productManager.addProduct(s, gson.fromJson(effect.get("Product"), Product.class));
+                break;
+            case "PRODUCT_REMOVED":
+                productManager.removeProduct(s, effect.get("Product").getAsString());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Appends a record to the log of the change being made; does nothing while the log is off or replayed. */
+    private void record(String kind, String data) {
+        WriteAheadLog log = wal;
+        if (log != null) {
+            log.record(kind, data);
+        }
+    }
+
+    /**
+     * Writes what each change to a served store did, as one record: units
+     * sold (SOLD), a stock delta (STOCK_CHANGED), the new rating (REVIEWED),
+     * a product added or removed (PRODUCT_ADDED, PRODUCT_REMOVED). Refused
+     * orders and changes write nothing.
+     */
+    private final class LogJournal implements StoreJournal {
+        @Override
+        public void sold(Store store, Map<Product, Integer> quantities) {
+            if (wal == null) return;
+            JsonArray lines = new JsonArray();
+            quantities.forEach((p, q) -> {
+                JsonObject line = new JsonObject();
+                line.addProperty("ProductName", p.getProductName());
+                line.addProperty("ProductType", p.getProductType());
+                line.addProperty("Quantity", q);
+                line.addProperty("Price", p.getPrice());
+                lines.add(line);
+            });
+            JsonObject effect = effectOn(store);
+            effect.add("Lines", lines);
+            record("SOLD", effect.toString());
+        }
+
+        @Override
+        public void stockChanged(Store store, Product product, int delta) {
+            if (wal == null) return;
+            JsonObject effect = effectOn(store);
+            effect.addProperty("Product", product.getProductName());
+            effect.addProperty("Delta", delta);
+            record("STOCK_CHANGED", effect.toString());
+        }
+
+        @Override
+        public void reviewed(Store store, int stars, int votes) {
+            if (wal == null) return;
+            JsonObject effect = effectOn(store);
+            effect.addProperty("Stars", stars);
+            effect.addProperty("Votes", votes);
+            record("REVIEWED", effect.toString());
+        }
+
+        @Override
+        public void productAdded(Store store, Product product) {
+            if (wal == null) return;
+            JsonObject effect = effectOn(store);
+            effect.add("Product", gson.toJsonTree(product));
+            record("PRODUCT_ADDED", effect.toString());
+        }
+
+        @Override
+        public void productRemoved(Store store, String productName) {
+            if (wal == null) return;
+            JsonObject effect = effectOn(store);
+            effect.addProperty("Product", productName);
+            record("PRODUCT_REMOVED", effect.toString());
+        }
+
+        private JsonObject effectOn(Store store) {
+            JsonObject effect = new JsonObject();
+            effect.addProperty("Store", store.getStoreName());
+            return effect;
+        }
+    }
+
+    /**
+     * Runs a command, logging it as well if it changes state and the log is
+     * on. A change the log could not make durable is answered with an error.
+     */
+    private String logged(String command, String data, Supplier<String> apply) {
+        WriteAheadLog log = wal;
+        String name = command.toUpperCase();
+        if (log == null || !LOGGED_COMMANDS.contains(name)) {
+            return apply.get();
+        }
+        try {
+            // commands that add, remove or hand off stores run alone
+            return log.apply(name.contains("STORE"), apply);
+        } catch (UncheckedIOException e) {
+            System.err.println("Write-ahead log write failed: " + e.getMessage());
+            return gson.toJson(Map.of("error", "Not durable, please retry: " + e.getCause().getMessage()));
+        }
     }
 
     /**
@@ -370,6 +1317,9 @@ public class Worker {
             throw new RuntimeException("Failed to bind on port " + commandPort, e);
         }
 
+        // 1b) Recover the state we had before we last stopped, if we keep a log
+        recover();
+
         // 2) Handshake + collect dynamic‐replay messages
         List<Store> replayAdds    = new ArrayList<>();
         List<String> replayRemoves = new ArrayList<>();
@@ -403,6 +1353,10 @@ public class Worker {
                         Store s = gson.fromJson(json, Store.class);
                         replayAdds.add(s);
                     }
+                    case "RING" -> {
+                        nodeName = in.readLine().trim();
+                        ring = HashRing.fromSpec(in.readLine().trim());
+                    }
                     case "REMOVE_STORE(REPLAY)" -> {
                         String name = in.readLine();
                         in.readLine();           // jobId
@@ -417,98 +1371,262 @@ public class Worker {
             System.err.println("Warning: cannot reach Master for handshake, running standalone: " + e.getMessage());
             workerId     = 0;
             totalWorkers = 1;
+            ring         = null;     // standalone: every store is ours
         }
 
-        // 3) Load your static JSON stores exactly once
-        loadStores();  // this populates `allStores` and partitions into storeManager
+        // 3) Open the catalog exactly once and load our shard of it
+        loadStores();  // this learns every store name and adopts our shard into storeManager
 
-        // 4) Apply the replays you collected
+        // 4) Apply the replays you collected (a recovered store is newer than its replay)
         for (Store s : replayAdds) {
             s.setAveragePriceOfStore();
             s.setAveragePriceOfStoreSymbol();
-            allStores.add(s);
+            knownStores.add(s.getStoreName());
+            addedStores.putIfAbsent(s.getStoreName(), s);
         }
         for (String name : replayRemoves) {
-            allStores.removeIf(s -> s.getStoreName().equals(name));
+            knownStores.remove(name);
+            addedStores.remove(name);
         }
 
-        // 5) Re-partition so storeManager reflects both static + dynamic stores
+        // 5) Apply the delta so storeManager reflects both static + dynamic stores
         loadStores();
+        // keep recovered state only as the fallback for handoffs still on their way
+        recoveredStores.keySet().retainAll(pendingHandoffs.keySet());
+        parkedEffects.keySet().retainAll(pendingHandoffs.keySet());
+        if (!leavingStores.isEmpty()) {
+            scheduleHandoffRetry(1);    // recovered handoffs nobody acknowledged
+        }
 
         System.out.println("Worker " + workerId + " loaded stores (incl. dynamic) and ready; listening on port " + commandPort);
 
         // 6) Shutdown hook and begin serving commands
         checkKeyboardInputForShutdown();
-        // 5) accept-loop
+        // 7) accept-loop: each connection is handed to the command pool so a slow
+        //    SEARCH or reduce hand-off does not hold up the next PURCHASE_PRODUCT;
+        //    a full pool holds up the accept loop instead of piling up threads
         while (true) {
-            try (Socket s = server.accept();
-                 BufferedReader in = new BufferedReader(
-                         new InputStreamReader(s.getInputStream()));
-                 PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
-                String command = in.readLine();
-                String data    = in.readLine();
-                String jobId   = in.readLine();
-                if (command == null) continue;
-
-                System.out.printf("Worker %d received %s / %s / %s%n",
-                        workerId, command, data, jobId);
-
-                if ("RELOAD".equalsIgnoreCase(command)) {
-                    totalWorkers = Integer.parseInt(data.trim());
-                    loadStores();
-                    out.println("RELOAD_RESPONSE: reloaded");
-                    continue;
-                }
-                if ("DECREMENT_ID".equalsIgnoreCase(command)) {
-                    String[] p = data.split(":");
-                    workerId = Integer.parseInt(p[0]);
-                    totalWorkers = Integer.parseInt(p[1]);
-                    continue;
-                }
-
-                if ("STORE_DETAILS".equalsIgnoreCase(command)) {
-                    String storeName = data.trim();
-                    Store found = storeManager.getStore(storeName);
-
-                    String payload;
-                    if (found != null) {
-                        // NEW: embed the actual bytes
-                        try {
-                            if (found.getStoreLogo() != null && !found.getStoreLogo().isEmpty()) {
-                                // The path in JSON is relative to the JAR resources
-                                InputStream is = Worker.class.getResourceAsStream(
-                                        "/" + found.getStoreLogo().replace('\\','/'));
-                                if (is != null) {
-                                    byte[] bytes = is.readAllBytes();
-                                    String b64 = Base64.getEncoder().encodeToString(bytes);
-                                    found.setStoreLogo(b64);   // add setter or public field
-                                }
-                            }
-                        } catch (IOException ioe) {
-                            System.err.println("Logo read failed for " + storeName + ": " + ioe);
-                        }
-                        payload = gson.toJson(found);
-                    } else {
-                        payload = "{\"error\":\"Store not found: " + storeName + "\"}";
-                    }
+            Socket s;
+            try {
+                s = server.accept();
+            } catch (IOException ex) {
+                System.err.println("Error accepting command: " + ex.getMessage());
+                continue;
+            }
+            if (commandExecutor == null) {
+                handleConnection(s);
+            } else {
+                commandExecutor.execute(() -> handleConnection(s));
+            }
+        }
+    }
+
+    /**
+     * Serves one accepted connection, on the command pool or, in sequential
+     * mode, the accept thread. A connection that opens with the binary
+     * preamble or the {@code MUX} header is a persistent channel (the Master's
+     * or a peer's) and moves to a connection thread of its own; anything else
+     * is a classic one-shot command (command, data, jobId lines), executed
+     * right here.
+     *
+     * @param socket the accepted command connection
+     */
+    private void handleConnection(Socket socket) {
+        boolean persistent = false;
+        try {
+            BufferedInputStream raw = new BufferedInputStream(socket.getInputStream());
+            if (WireProtocol.isBinary(raw)) {
+                persistent = true;
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+                serveChannel(socket, () -> serveBinary(new DataInputStream(raw), out));
+                return;
+            }
+            BufferedReader in = new BufferedReader(new InputStreamReader(raw));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+            String command = in.readLine();
+            if (command == null) return;
 
-                    out.println("CMD_RESPONSE:" + payload);
-                    continue;
+            if (WorkerChannel.MUX_HEADER.equals(command)) {
+                persistent = true;
+                serveChannel(socket, () -> serveMultiplexed(in, out));
+                return;
+            }
+
+            String data    = in.readLine();
+            String jobId   = in.readLine();
+            String response = execute(command, data, jobId);
+            if (response != null) {
+                out.println(response);
+            }
+        } catch (IOException ex) {
+            System.err.println("Error handling command: " + ex.getMessage());
+        } finally {
+            if (!persistent) {
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /** The read loop of a persistent channel. */
+    private interface Channel {
+        void serve() throws IOException;
+    }
+
+    /**
+     * Serves a persistent channel on a connection thread until the peer
+     * closes it, then closes the socket.
+     */
+    private void serveChannel(Socket socket, Channel channel) {
+        connectionExecutor.execute(() -> {
+            try (socket) {
+                channel.serve();
+            } catch (IOException ex) {
+                System.err.println("Error handling command: " + ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Binary counterpart of {@link #serveMultiplexed}: reads request frames
+     * until the peer closes and answers each with a RESPONSE frame carrying the
+     * same jobId and the full response line as payload.
+     */
+    private void serveBinary(DataInputStream in, DataOutputStream out) throws IOException {
+        WireProtocol.acceptPreamble(in, out);
+        WireProtocol.Frame req;
+        while ((req = WireProtocol.readFrame(in)) != null) {
+            WireProtocol.Frame r = req;
+            Runnable task = () -> {
+                String response;
+                try {
+                    response = execute(r.getCommand(), r.getPayload(), r.getJobId());
+                } catch (RuntimeException e) {
+                    response = "CMD_RESPONSE:{\"error\":\"" + e.getClass().getSimpleName() + "\"}";
                 }
+                synchronized (out) {
+                    try {
+                        WireProtocol.writeFrame(out, new WireProtocol.Frame(
+                                WireProtocol.RESPONSE, r.getJobId(), response == null ? "ACK" : response));
+                        out.flush();
+                    } catch (IOException e) {
+                        System.err.println("Error writing response: " + e.getMessage());
+                    }
+                }
+            };
+            if (runsInline(r.getCommand())) {
+                task.run();
+            } else {
+                commandExecutor.execute(task);
+            }
+        }
+    }
 
+    /**
+     * Reads requests from a multiplexed Master channel until it closes. Each
+     * request is executed on the command pool, and its response is written back
+     * prefixed with the request's jobId, in whatever order requests complete.
+     */
+    private void serveMultiplexed(BufferedReader in, PrintWriter out) throws IOException {
+        String command;
+        while ((command = in.readLine()) != null) {
+            String data  = in.readLine();
+            String jobId = in.readLine();
+            if (jobId == null) break;
+
+            String cmd = command;
+            Runnable task = () -> {
                 String response;
-                if (command.contains("|")) {
-                    String[] parts = command.split("\\|",3);
-                    response = processCommand(parts[0], parts[1], parts[2]);
-                } else {
-                    response = processCommand(command, data, jobId);
+                try {
+                    response = execute(cmd, data, jobId);
+                } catch (RuntimeException e) {
+                    response = "CMD_RESPONSE:{\"error\":\"" + e.getClass().getSimpleName() + "\"}";
                 }
-                out.println("CMD_RESPONSE:" + response);
+                synchronized (out) {
+                    out.println(jobId + " " + (response == null ? "ACK" : response));
+                }
+            };
+            if (runsInline(cmd)) {
+                task.run();
+            } else {
+                commandExecutor.execute(task);
+            }
+        }
+    }
 
-            } catch (IOException ex) {
-                System.err.println("Error handling command: " + ex.getMessage());
+    /**
+     * Whether a command runs on the connection's own thread instead of the pool:
+     * always in sequential mode, and for STORE_HANDOFF, which commands on the
+     * pool may be waiting for and so must never queue behind them.
+     */
+    private boolean runsInline(String command) {
+        return commandExecutor == null || "STORE_HANDOFF".equalsIgnoreCase(command);
+    }
+
+    /**
+     * Executes one command and returns the full response line,
+     * or null for commands that send no reply.
+     */
+    private String execute(String command, String data, String jobId) {
+        System.out.printf("Worker %d received %s / %s / %s%n",
+                workerId, command, data, jobId);
+
+        if ("RELOAD".equalsIgnoreCase(command)) {
+            synchronized (this) {
+                // only a changed ring moves stores; an ADD/REMOVE_STORE has been applied already
+                HashRing before = ring;
+                if (applyMembership(data)) {
+                    rebalance(before);
+                }
             }
+            return "RELOAD_RESPONSE: reloaded";
         }
+        if ("DECREMENT_ID".equalsIgnoreCase(command)) {
+            String[] p = data.split(":");
+            synchronized (this) {
+                workerId = Integer.parseInt(p[0]);
+                totalWorkers = Integer.parseInt(p[1]);
+            }
+            return null;
+        }
+
+        if ("STORE_HANDOFF".equalsIgnoreCase(command)) {
+            return "CMD_RESPONSE:" + logged(command, data, () -> acceptHandoff(data));
+        }
+        awaitPendingHandoff(data);
+
+        if ("STORE_DETAILS".equalsIgnoreCase(command)) {
+            String storeName = data.trim();
+            Store found = storeManager.getStore(storeName);
+
+            String payload;
+            if (found != null) {
+                // the reply carries the logo's bytes; the store keeps its path
+                JsonObject details = JsonParser.parseString(found.toJson()).getAsJsonObject();
+                String logo = found.getStoreLogo();
+                if (logo != null && !logo.isEmpty()) {
+                    // The path in JSON is relative to the JAR resources
+                    try (InputStream is = Worker.class.getResourceAsStream("/" + logo.replace('\\', '/'))) {
+                        if (is != null) {
+                            details.addProperty("StoreLogo", Base64.getEncoder().encodeToString(is.readAllBytes()));
+                        }
+                    } catch (IOException ioe) {
+                        System.err.println("Logo read failed for " + storeName + ": " + ioe);
+                    }
+                }
+                payload = details.toString();
+            } else {
+                payload = "{\"error\":\"Store not found: " + storeName + "\"}";
+            }
+
+            return "CMD_RESPONSE:" + payload;
+        }
+
+        String[] call = command.contains("|")
+                ? command.split("\\|", 3)
+                : new String[]{command, data, jobId};
+        return "CMD_RESPONSE:" + logged(call[0], call[1], () -> processCommand(call[0], call[1], call[2]));
     }
 
     private void sendTerminationCommand() {
@@ -539,7 +1657,8 @@ public class Worker {
     }
     /**
      * Main entry point for the Worker application.
-     * Registers a shutdown hook to notify Master before exit and starts the worker.
+     * Registers a shutdown hook that hands the worker's stores off and notifies
+     * the Master before exit, and starts the worker.
      *
      * @param args command-line arguments (not used)
      */
@@ -548,7 +1667,7 @@ public class Worker {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutdown hook triggered for Worker");
             try {
-                worker.sendTerminationCommand();
+                worker.shutdown();
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -0,0 +1,455 @@
+package Worker;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable log of a worker's state changes, with periodic snapshots.
+ * <p>
+ * A command runs through {@link #apply}, and every change it makes that takes
+ * effect is appended, while it is made, as a {@code (seq, kind, data)} record
+ * through {@link #record}; the records are on disk before the command is
+ * acknowledged, and a command that changed nothing logs nothing. Records are
+ * effects (units sold, a stock delta), not requests, so those of concurrent
+ * changes to one store replay to the same state in whatever order they were
+ * appended, and no lock is held per store beyond the store's own. Changes to
+ * the set of stores have the log to themselves. Commands arriving together
+ * share one write and one fsync (group commit): the first waiting thread
+ * writes out everything appended so far and the others find their records
+ * already durable. No lock is held while waiting for the disk.
+ * <p>
+ * A snapshot holds the complete state as of a sequence number S and starts a
+ * new log segment at S; older segments and snapshots are deleted once it is
+ * on disk. Recovery restores the newest snapshot and replays the records of
+ * the segments after it, so it never replays more than one snapshot
+ * interval's worth of commands.
+ *
+ * <h3>Files</h3>
+ * <pre>
+ *   snapshot-S.json   state covering every record before S (written atomically)
+ *   wal-N.log         records N, N+1, ...: int length, int CRC32, then
+ *                     long seq, int + bytes kind, int + bytes data
+ * </pre>
+ * A torn record at the end of a segment (a crash during a write) fails its
+ * checksum and ends the replay there; it was never acknowledged.
+ * <p>
+ * Enabled with {@code -Dfreefood.wal.dir=DIR}; each worker logs under its own
+ * subdirectory of it.
+ */
+public final class WriteAheadLog {
+    /** Root directory of the logs, or null if logging is off. */
+    public static final String DIR = System.getProperty("freefood.wal.dir");
+    /**
+     * Whether records are forced to disk before they are acknowledged;
+     * {@code -Dfreefood.wal.fsync=false} trades durability for latency.
+     */
+    public static final boolean FSYNC = !"false".equalsIgnoreCase(System.getProperty("freefood.wal.fsync", "true"));
+    /** A snapshot is taken once this many records have been logged since the last one. */
+    public static final long SNAPSHOT_EVERY_RECORDS = Long.getLong("freefood.wal.snapshotRecords", 10_000L);
+    /** ...and at least this often while anything is being logged. */
+    public static final long SNAPSHOT_INTERVAL_MS = Long.getLong("freefood.wal.snapshotIntervalMs", 60_000L);
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-", SNAPSHOT_SUFFIX = ".json";
+    private static final String SEGMENT_PREFIX = "wal-", SEGMENT_SUFFIX = ".log";
+
+    private final Path dir;
+
+    /**
+     * Changes hold the read side while they are made and recorded; a snapshot,
+     * or a change to the set of stores, takes the write side.
+     */
+    private final ReadWriteLock cut = new ReentrantReadWriteLock();
+    /** Guards the channel and makes one thread at a time the writer of a group. */
+    private final Object syncLock = new Object();
+    /** The last record the calling thread appended in its current {@link #apply}, 0 for none, -1 outside one. */
+    private final ThreadLocal<long[]> lastRecorded = ThreadLocal.withInitial(() -> new long[]{-1});
+    /** The first write that failed; once set, nothing more is applied or logged. */
+    private volatile IOException failure;
+
+    /* guarded by this */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(8192);
+    private long nextSeq = 1;
+
+    /* guarded by syncLock */
+    private FileChannel segment;
+    private volatile long durableSeq;
+
+    /** Held for a whole snapshot, so that two never overlap. */
+    private final Object snapshotLock = new Object();
+    private volatile long snapshotSeq = 1;
+    private Supplier<String> snapshotState;
+    private final AtomicBoolean snapshotQueued = new AtomicBoolean();
+    private final ScheduledExecutorService snapshotter =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "wal-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private WriteAheadLog(Path dir) {
+        this.dir = dir;
+    }
+
+    /** Opens (creating if needed) the log in a directory. Call {@link #recover} next. */
+    public static WriteAheadLog open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        return new WriteAheadLog(dir);
+    }
+
+    /**
+     * Restores the newest snapshot and replays every record logged after it,
+     * in order.
+     *
+     * @param restore receives the snapshot's state, unless there is none
+     * @param replay  receives each record's kind and data
+     * @return the number of records replayed
+     */
+    public int recover(Consumer<String> restore, BiConsumer<String, String> replay) throws IOException {
+        TreeMap<Long, Path> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        TreeMap<Long, Path> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        long from = 1;
+        if (!snapshots.isEmpty()) {
+            from = snapshots.lastKey();
+            restore.accept(Files.readString(snapshots.lastEntry().getValue(), StandardCharsets.UTF_8));
+        }
+        long last = from - 1;
+        int replayed = 0;
+        for (Path file : segments.tailMap(from, true).values()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                Record r;
+                while ((r = readRecord(in, file)) != null) {
+                    if (r.seq <= last) continue;
+                    replay.accept(r.command, r.data);
+                    last = r.seq;
+                    replayed++;
+                }
+            }
+        }
+        synchronized (this) {
+            nextSeq = last + 1;
+        }
+        durableSeq = last;
+        snapshotSeq = from;
+        return replayed;
+    }
+
+    /**
+     * Starts logging: opens a fresh segment behind the recovered records and
+     * schedules snapshots.
+     *
+     * @param state renders the worker's complete state; called while appends are held off
+     */
+    public void start(Supplier<String> state) throws IOException {
+        this.snapshotState = state;
+        synchronized (syncLock) {
+            segment = openSegment(nextSeq());
+        }
+        snapshotter.scheduleWithFixedDelay(this::snapshotQuietly,
+                SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies a state change, which {@link #record}s its effects as it makes
+     * them. Returns once those records are durable, so the caller may
+     * acknowledge the change.
+     *
+     * @param exclusive whether the change adds, removes or hands off stores
+     *                  and must run alone
+     * @param mutation  applies the change and returns its result
+     * @throws UncheckedIOException if a record could not be written; the
+     *         change may be applied in memory but must not be acknowledged.
+     *         After such a failure every later call fails without applying.
+     */
+    public <T> T apply(boolean exclusive, Supplier<T> mutation) {
+        checkHealthy();
+        Lock lock = exclusive ? cut.writeLock() : cut.readLock();
+        long[] last = lastRecorded.get();
+        T result;
+        long seq;
+        lock.lock();
+        try {
+            last[0] = 0;
+            result = mutation.get();
+        } finally {
+            seq = last[0];
+            last[0] = -1;
+            lock.unlock();
+        }
+        if (seq == 0) {
+            return result;           // nothing took effect
+        }
+        if (seq - snapshotSeq >= SNAPSHOT_EVERY_RECORDS && snapshotQueued.compareAndSet(false, true)) {
+            snapshotter.execute(this::snapshotQuietly);
+        }
+        try {
+            sync(seq);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Change is not durable", e);
+        }
+        return result;
+    }
+
+    /**
+     * Appends a record of a change that took effect. Must be called from the
+     * mutation of an {@link #apply}, while the change is made, so that the
+     * record is in the log exactly when the change is in a snapshot.
+     *
+     * @param kind the kind of change, replayed as is
+     * @param data the change's data
+     * @throws IllegalStateException if not called from within {@code apply}
+     */
+    public void record(String kind, String data) {
+        long[] last = lastRecorded.get();
+        if (last[0] < 0) {
+            throw new IllegalStateException(kind + " recorded outside of a logged change");
+        }
+        last[0] = append(kind, data);
+    }
+
+    private void checkHealthy() {
+        IOException e = failure;
+        if (e != null) {
+            throw new UncheckedIOException("Write-ahead log failed earlier", e);
+        }
+    }
+
+    /**
+     * Takes a snapshot and drops the log it makes redundant. Appends wait only
+     * while the log is cut and the state is rendered, not while it is written.
+     */
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            writeSnapshot();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        long covered;
+        String state;
+        cut.writeLock().lock();
+        try {
+            covered = nextSeq();
+            if (covered == snapshotSeq) {
+                return;              // nothing logged since the last one
+            }
+            sync(covered - 1);
+            synchronized (syncLock) {
+                segment.close();
+                segment = openSegment(covered);
+            }
+            state = snapshotState.get();
+        } finally {
+            cut.writeLock().unlock();
+        }
+
+        Path tmp = dir.resolve(SNAPSHOT_PREFIX + covered + SNAPSHOT_SUFFIX + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.wrap(state.getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_PREFIX + covered + SNAPSHOT_SUFFIX),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        snapshotSeq = covered;
+
+        for (Path old : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(covered).values()) {
+            Files.deleteIfExists(old);
+        }
+        for (Path old : list(SEGMENT_PREFIX, SEGMENT_SUFFIX).headMap(covered).values()) {
+            Files.deleteIfExists(old);
+        }
+        System.out.println("Snapshot " + covered + " written (" + state.length() + " chars)");
+    }
+
+    /** Takes a last snapshot, so the next start replays nothing, and closes the log. */
+    public void close() {
+        snapshotter.shutdown();      // no interrupts: they would close the segment under a writer
+        snapshotQuietly();
+        synchronized (syncLock) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                System.err.println("Closing write-ahead log failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /* ---------- appending ---------- */
+
+    private synchronized long nextSeq() {
+        return nextSeq;
+    }
+
+    /** Encodes a record into the pending group and returns its sequence number. */
+    private synchronized long append(String command, String data) {
+        long seq = nextSeq++;
+        byte[] cmd = command.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = (data == null ? "" : data).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(20 + cmd.length + payload.length);
+        try {
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeLong(seq);
+            out.writeInt(cmd.length);
+            out.write(cmd);
+            out.writeInt(payload.length);
+            out.write(payload);
+            CRC32 crc = new CRC32();
+            crc.update(body.toByteArray());
+            DataOutputStream group = new DataOutputStream(pending);
+            group.writeInt(body.size());
+            group.writeInt((int) crc.getValue());
+            body.writeTo(group);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // in-memory streams do not fail
+        }
+        return seq;
+    }
+
+    /**
+     * Makes sure every record up to {@code seq} is on disk. Whoever gets here
+     * first writes the whole pending group, including records appended by the
+     * threads queued behind it, with a single fsync.
+     */
+    private void sync(long seq) throws IOException {
+        if (durableSeq >= seq) return;
+        synchronized (syncLock) {
+            if (failure != null) throw failure;
+            if (durableSeq >= seq) return;
+            byte[] group;
+            long upTo;
+            synchronized (this) {
+                group = pending.toByteArray();
+                pending = new ByteArrayOutputStream(Math.max(8192, group.length));
+                upTo = nextSeq - 1;
+            }
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(group);
+                while (buf.hasRemaining()) {
+                    segment.write(buf);
+                }
+                if (FSYNC) {
+                    segment.force(false);
+                }
+            } catch (IOException e) {
+                // the group is gone: writing later ones would leave a hole in the log
+                failure = e;
+                throw e;
+            }
+            durableSeq = upTo;
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Snapshot failed: " + e.getMessage());
+        } finally {
+            snapshotQueued.set(false);
+        }
+    }
+
+    /* ---------- files ---------- */
+
+    private FileChannel openSegment(long firstSeq) throws IOException {
+        // a segment of that name can only hold a torn record nobody was told about
+        return FileChannel.open(dir.resolve(SEGMENT_PREFIX + firstSeq + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /** The files named {@code prefix<number>suffix}, by number. */
+    private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (Stream<Path> s = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) s::iterator) {
+                String name = p.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                    try {
+                        files.put(Long.parseLong(name.substring(prefix.length(),
+                                name.length() - suffix.length())), p);
+                    } catch (NumberFormatException ignored) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    private static final class Record {
+        final long seq;
+        final String command;
+        final String data;
+
+        Record(long seq, String command, String data) {
+            this.seq = seq;
+            this.command = command;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads the next record of a segment.
+     *
+     * @return the record, or null at the end of the segment or at a torn record
+     */
+    private static Record readRecord(DataInputStream in, Path file) throws IOException {
+        int length, checksum;
+        byte[] body;
+        try {
+            length = in.readInt();
+            checksum = in.readInt();
+            if (length < 16 || length > 64 * 1024 * 1024) {
+                System.err.println("Corrupt record in " + file.getFileName() + "; replay stops there");
+                return null;
+            }
+            body = new byte[length];
+            in.readFully(body);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+            System.err.println("Torn record in " + file.getFileName() + "; replay stops there");
+            return null;
+        }
+        DataInputStream r = new DataInputStream(new ByteArrayInputStream(body));
+        long seq = r.readLong();
+        byte[] cmd = new byte[r.readInt()];
+        r.readFully(cmd);
+        byte[] data = new byte[r.readInt()];
+        r.readFully(data);
+        return new Record(seq, new String(cmd, StandardCharsets.UTF_8), new String(data, StandardCharsets.UTF_8));
+    }
+}
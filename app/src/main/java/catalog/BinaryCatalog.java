@@ -0,0 +1,271 @@
+package catalog;
+
+import model.Product;
+import model.Store;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Read-only store catalog in a compact binary file that is memory-mapped
+ * rather than read.
+ * <p>
+ * Opening a catalog maps the file and checks its header, nothing more, so it
+ * takes the same time for ten stores as for a hundred thousand. Records are
+ * decoded straight from the mapping when they are asked for: {@link #name}
+ * reads one string, {@link #store} builds the {@link Store} with its products,
+ * without JSON or reflection. Records are sorted by store name, so
+ * {@link #find} is a binary search. Pages the worker never touches are never
+ * read from disk.
+ *
+ * <h3>Layout</h3>
+ * Big-endian, strings as {@code int byteLength + UTF-8}:
+ * <pre>
+ *   int    magic 'FFCT'
+ *   int    version
+ *   int    store count n
+ *   long[n] record offsets, in store name order
+ *   records:
+ *     int    record length (bytes that follow)
+ *     str    name, double latitude, double longitude, str category,
+ *     int    stars, int votes, str logo,
+ *     int    product count, then per product: str name, str type, int amount, double price
+ * </pre>
+ * Catalogs are written by {@link #write}, see {@link CatalogConverter}. A single
+ * mapping limits a catalog to 2 GB.
+ */
+public final class BinaryCatalog implements CatalogSource {
+    /**
+     * Catalog the workers load instead of the bundled JSON, {@code -Dfreefood.catalog=PATH}: a
+     * binary catalog file, or a directory or zip/jar of JSON store files (see {@link CatalogSource#open}).
+     */
+    public static final String PATH = System.getProperty("freefood.catalog");
+
+    private static final int MAGIC = 0x46464354;     // "FFCT"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+
+    private final Path file;
+    private final ByteBuffer buf;
+    private final int count;
+
+    private BinaryCatalog(Path file, ByteBuffer buf) throws IOException {
+        this.file = file;
+        this.buf = buf;
+        if (buf.capacity() < HEADER_BYTES || buf.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a store catalog");
+        }
+        if (buf.getInt(4) != VERSION) {
+            throw new IOException(file + ": unsupported catalog version " + buf.getInt(4));
+        }
+        this.count = buf.getInt(8);
+        if (count < 0 || HEADER_BYTES + 8L * count > buf.capacity()) {
+            throw new IOException(file + ": corrupt catalog header");
+        }
+    }
+
+    /**
+     * Maps a catalog file.
+     *
+     * @throws IOException if the file cannot be mapped or is not a catalog
+     */
+    public static BinaryCatalog open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is larger than 2 GB");
+            }
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return new BinaryCatalog(file, map);
+        }
+    }
+
+    /** The number of stores in the catalog. */
+    public int size() {
+        return count;
+    }
+
+    /** The name of the i-th store, in name order, without decoding the rest of it. */
+    public String name(int i) {
+        return string(offset(i) + 4);
+    }
+
+    /**
+     * Decodes the i-th store.
+     *
+     * @return a new, independent Store; callers may modify it
+     */
+    public Store store(int i) {
+        int p = offset(i) + 4;
+        String name = string(p);
+        p = skipString(p);
+        double latitude = buf.getDouble(p);
+        double longitude = buf.getDouble(p + 8);
+        p += 16;
+        String category = string(p);
+        p = skipString(p);
+        int stars = buf.getInt(p);
+        int votes = buf.getInt(p + 4);
+        p += 8;
+        String logo = string(p);
+        p = skipString(p);
+        int n = buf.getInt(p);
+        p += 4;
+        List<Product> products = new ArrayList<>(n);
+        for (int k = 0; k < n; k++) {
+            String productName = string(p);
+            p = skipString(p);
+            String type = string(p);
+            p = skipString(p);
+            products.add(new Product(productName, type, buf.getInt(p), buf.getDouble(p + 4)));
+            p += 12;
+        }
+        return new Store(name, latitude, longitude, category, stars, votes, 0.0, logo, products);
+    }
+
+    /** Reads every name and nothing else of the records. */
+    @Override
+    public List<String> names() {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(name(i));
+        }
+        return names;
+    }
+
+    @Override
+    public Store load(String storeName) {
+        return find(storeName);
+    }
+
+    /**
+     * Looks a store up by name.
+     *
+     * @return the decoded store, or null if the catalog has none of that name
+     */
+    public Store find(String storeName) {
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = name(mid).compareTo(storeName);
+            if (c == 0) return store(mid);
+            if (c < 0) lo = mid + 1; else hi = mid - 1;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryCatalog[" + file + ", " + count + " stores]";
+    }
+
+    private int offset(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("store " + i + " of " + count);
+        }
+        return (int) buf.getLong(HEADER_BYTES + 8 * i);
+    }
+
+    /** Reads a length-prefixed string at an absolute position; absolute reads keep this thread-safe. */
+    private String string(int p) {
+        int len = buf.getInt(p);
+        if (len < 0) return null;
+        byte[] bytes = new byte[len];
+        buf.get(p + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** The position right after the string at {@code p}. */
+    private int skipString(int p) {
+        return p + 4 + Math.max(buf.getInt(p), 0);
+    }
+
+    /* ---------- writing ---------- */
+
+    /**
+     * Writes stores as a catalog, replacing the file atomically. Only the
+     * catalog attributes are kept: no sales, revenue or averages (those are
+     * derived again on load).
+     *
+     * @param stores the stores; names must be unique
+     * @param file   the catalog file to write
+     * @return the size of the catalog in bytes
+     */
+    public static long write(Collection<Store> stores, Path file) throws IOException {
+        List<Store> sorted = new ArrayList<>(stores);
+        sorted.sort(Comparator.comparing(Store::getStoreName));
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).getStoreName().equals(sorted.get(i - 1).getStoreName())) {
+                throw new IllegalArgumentException("Duplicate store " + sorted.get(i).getStoreName());
+            }
+        }
+
+        List<byte[]> records = new ArrayList<>(sorted.size());
+        for (Store s : sorted) {
+            records.add(encode(s));
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long offset = HEADER_BYTES + 8L * records.size();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(records.size());
+            for (byte[] r : records) {
+                out.writeLong(offset);
+                offset += 4 + r.length;
+            }
+            for (byte[] r : records) {
+                out.writeInt(r.length);
+                out.write(r);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return offset;
+    }
+
+    private static byte[] encode(Store s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, s.getStoreName());
+        out.writeDouble(s.getLatitude());
+        out.writeDouble(s.getLongitude());
+        writeString(out, s.getFoodCategory());
+        out.writeInt(s.getStars());
+        out.writeInt(s.getNoOfVotes());
+        writeString(out, s.getStoreLogo());
+        List<Product> products = s.getProducts() == null ? List.of() : s.getProducts();
+        out.writeInt(products.size());
+        for (Product p : products) {
+            writeString(out, p.getProductName());
+            writeString(out, p.getProductType());
+            out.writeInt(p.getAvailableAmount());
+            out.writeDouble(p.getPrice());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Writes a string as its UTF-8 length and bytes; null as length -1. */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+}
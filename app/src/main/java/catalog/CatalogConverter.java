@@ -0,0 +1,43 @@
+package catalog;
+
+import model.Store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Offline converter from the JSON store files to a {@link BinaryCatalog}.
+ * Every {@code *.json} file under the input directory (or zip/jar) holds one
+ * store; they are read in parallel, as a worker reads a {@link JsonCatalog}.
+ * Usage:
+ * <pre>
+ *   java catalog.CatalogConverter catalog.ffc [jsonDir]
+ * </pre>
+ * {@code jsonDir} defaults to {@code app/src/main/resources/jsonf/stores}.
+ * Workers load the result with {@code -Dfreefood.catalog=catalog.ffc}.
+ */
+public class CatalogConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java catalog.CatalogConverter <catalog.ffc> [jsonDir]");
+            System.exit(2);
+        }
+        Path out = Path.of(args[0]);
+        Path in = Path.of(args.length > 1 ? args[1] : "app/src/main/resources/jsonf/stores");
+
+        long start = System.nanoTime();
+        JsonCatalog json = JsonCatalog.open(in);
+        Collection<Store> stores = json.loadAll(json.names()).values();
+        long bytes = BinaryCatalog.write(stores, out);
+
+        // read it back, so a broken catalog never reaches a worker
+        BinaryCatalog check = BinaryCatalog.open(out);
+        for (int i = 0; i < check.size(); i++) {
+            check.store(i);
+        }
+        System.out.printf("Wrote %d stores from %s to %s (%d bytes) in %d ms%n",
+                check.size(), in, out, bytes, (System.nanoTime() - start) / 1_000_000);
+    }
+}
@@ -0,0 +1,61 @@
+package catalog;
+
+import model.Store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where a worker's store definitions come from.
+ * <p>
+ * A worker keeps only the names of all stores, which is all the ring needs to
+ * place them, and asks the source for a full store when it comes to own one.
+ * Sources must be safe to read from several threads.
+ */
+public interface CatalogSource {
+
+    /** The names of every store in the catalog; cheap compared to loading them. */
+    List<String> names();
+
+    /**
+     * Decodes one store.
+     *
+     * @param storeName the store's name, as returned by {@link #names()}
+     * @return a new, independent Store, or null if the catalog has no such store
+     */
+    Store load(String storeName);
+
+    /**
+     * Decodes many stores in parallel, one slice per core (see
+     * {@code -Dfreefood.catalog.threads}).
+     *
+     * @return the stores by name, in the order asked for; names the catalog lacks are left out
+     */
+    default Map<String, Store> loadAll(List<String> storeNames) {
+        List<Store> stores = Ingest.map(storeNames, this::load);
+        Map<String, Store> byName = new LinkedHashMap<>();
+        for (int i = 0; i < storeNames.size(); i++) {
+            if (stores.get(i) != null) byName.put(storeNames.get(i), stores.get(i));
+        }
+        return byName;
+    }
+
+    /**
+     * Opens a catalog file: a directory or zip/jar archive of JSON store files
+     * is indexed as a {@link JsonCatalog}, any other file is mapped as a
+     * {@link BinaryCatalog}.
+     *
+     * @throws IOException if it cannot be read or is not a catalog
+     */
+    static CatalogSource open(Path path) throws IOException {
+        String file = path.getFileName() == null ? "" : path.getFileName().toString().toLowerCase();
+        if (Files.isDirectory(path) || file.endsWith(".zip") || file.endsWith(".jar")) {
+            return JsonCatalog.open(path);
+        }
+        return BinaryCatalog.open(path);
+    }
+}
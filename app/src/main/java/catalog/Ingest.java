@@ -0,0 +1,70 @@
+package catalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Runs catalog ingestion across all cores. The input is cut into one
+ * contiguous slice per thread, so a catalog of fifty thousand files costs a
+ * handful of tasks, not fifty thousand.
+ */
+final class Ingest {
+    /** Threads used to read a catalog, {@code -Dfreefood.catalog.threads=N}; defaults to the core count. */
+    static final int THREADS = Math.max(1, Integer.getInteger("freefood.catalog.threads",
+            Runtime.getRuntime().availableProcessors()));
+
+    private Ingest() {
+    }
+
+    /**
+     * Applies {@code f} to every element, in parallel.
+     *
+     * @return the results in input order; an element {@code f} maps to null stays null
+     */
+    static <T, R> List<R> map(List<T> in, Function<? super T, ? extends R> f) {
+        int n = in.size();
+        int threads = Math.min(THREADS, n);
+        Object[] out = new Object[n];
+        if (threads <= 1) {
+            for (int i = 0; i < n; i++) out[i] = f.apply(in.get(i));
+            return asList(out);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "catalog-ingest");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> slices = new ArrayList<>(threads);
+            for (int s = 0; s < threads; s++) {
+                int from = (int) ((long) n * s / threads);
+                int to = (int) ((long) n * (s + 1) / threads);
+                slices.add(pool.submit(() -> {
+                    for (int i = from; i < to; i++) out[i] = f.apply(in.get(i));
+                }));
+            }
+            for (Future<?> slice : slices) {
+                slice.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Catalog ingestion interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Catalog ingestion failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return asList(out);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <R> List<R> asList(Object[] out) {
+        return (List<R>) Arrays.asList(out);
+    }
+}
@@ -0,0 +1,158 @@
+package catalog;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import model.Store;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Catalog of JSON store files, one store per file, found by walking a
+ * directory or a zip/jar archive for {@code *.json}.
+ * <p>
+ * Indexing a file reads it only as far as its {@code StoreName} (normally the
+ * first field) with a streaming {@link JsonReader}; fields before it are
+ * skipped, not parsed, and the rest of the file is not read at all. Files are
+ * indexed in parallel, one slice per core. Only {@link #load} parses a whole
+ * file, so a worker pays the full parse just for the stores it owns.
+ */
+public final class JsonCatalog implements CatalogSource {
+    private static final Gson GSON = new Gson();
+
+    private final Path root;
+    /** Store name to the file holding it, in file order. */
+    private final Map<String, Path> files;
+
+    private JsonCatalog(Path root, Map<String, Path> files) {
+        this.root = root;
+        this.files = Collections.unmodifiableMap(files);
+    }
+
+    /**
+     * Indexes the store files under a directory or in a zip/jar archive.
+     *
+     * @throws IOException if the directory or archive cannot be read
+     */
+    public static JsonCatalog open(Path dirOrArchive) throws IOException {
+        Path root = dirOrArchive;
+        if (Files.isRegularFile(dirOrArchive)) {
+            // the archive's file system stays open for as long as the catalog is used
+            root = FileSystems.newFileSystem(dirOrArchive).getPath("/");
+        }
+        return index(root);
+    }
+
+    /**
+     * Indexes the store files under a classpath directory, whether the
+     * classes run from a directory or from a jar.
+     *
+     * @param anchor class whose loader resolves the directory
+     * @param dir    absolute resource directory, e.g. {@code /jsonf/stores}
+     * @throws IOException if there is no such directory or it cannot be read
+     */
+    public static JsonCatalog ofResources(Class<?> anchor, String dir) throws IOException {
+        URL url = anchor.getResource(dir);
+        if (url == null) {
+            throw new IOException("Resource not found: " + dir);
+        }
+        try {
+            URI uri = url.toURI();
+            Path root;
+            try {
+                root = Path.of(uri);
+            } catch (FileSystemNotFoundException e) {
+                FileSystems.newFileSystem(uri, Map.of());
+                root = Path.of(uri);
+            }
+            return index(root);
+        } catch (URISyntaxException e) {
+            throw new IOException("Bad resource URL " + url, e);
+        }
+    }
+
+    private static JsonCatalog index(Path root) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(p -> p.toString().endsWith(".json") && Files.isRegularFile(p))
+                    .sorted().toList();
+        }
+        List<String> names = Ingest.map(paths, JsonCatalog::storeNameOf);
+
+        Map<String, Path> files = new LinkedHashMap<>();
+        for (int i = 0; i < paths.size(); i++) {
+            String name = names.get(i);
+            if (name != null && files.putIfAbsent(name, paths.get(i)) != null) {
+                System.err.println("Duplicate store " + name + " in " + paths.get(i) + " ignored");
+            }
+        }
+        return new JsonCatalog(root, files);
+    }
+
+    @Override
+    public List<String> names() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    @Override
+    public Store load(String storeName) {
+        Path file = files.get(storeName);
+        if (file == null) return null;
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return GSON.fromJson(r, Store.class);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error loading store from " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JsonCatalog[" + root.toUri() + ", " + files.size() + " stores]";
+    }
+
+    /** The name of the store in a file, or null (and a message) if it has none or cannot be read. */
+    private static String storeNameOf(Path file) {
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String name = storeNameOf(r);
+            if (name == null) {
+                System.err.println("No StoreName in " + file);
+            }
+            return name;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error indexing store from " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads a store document up to its name.
+     *
+     * @return the value of the top-level {@code StoreName}, or null if there is none
+     */
+    static String storeNameOf(Reader r) throws IOException {
+        JsonReader in = new JsonReader(r);
+        in.beginObject();
+        while (in.hasNext()) {
+            if ("StoreName".equals(in.nextName())) {
+                return in.nextString();
+            }
+            in.skipValue();
+        }
+        return null;
+    }
+}
@@ -1,8 +1,11 @@
 package mapreduce;
 
-import model.Product;
+import Manager.SpatialIndex;
+import model.CartItem;
 import model.Store;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +18,7 @@ import java.util.Map;
  *   • REVIEW  (storeName|stars)
  *   • AGGREGATE_SALES_BY_PRODUCT_NAME (ProductName=<value>)
  *   • PURCHASE_PRODUCT (storeName|productName|qty)
+ *   • PURCHASE_CART (storeName|[{"ProductName":..,"Quantity":..}, ...]), all-or-nothing
  *
  * Each invocation emits zero or more {@code Pair<String,String>} objects that the
  * worker serialises and (optionally) forwards to the external reduce server.
@@ -30,6 +34,7 @@ public class ClientCommandMapperReducer {
         // SEARCH-only helpers
         private String filterKey;
         private String filterValue;
+        private String priceSymbol;     // AvgPrice filter, built once per query
 
         public ClientCommandMapper(String command,
                                    String data,
@@ -41,6 +46,9 @@ public class ClientCommandMapperReducer {
                 if (parts.length == 2) {
                     this.filterKey   = parts[0].trim();
                     this.filterValue = parts[1].trim();
+                    if ("avgprice".equalsIgnoreCase(filterKey)) {
+                        this.priceSymbol = "$".repeat(Integer.parseInt(filterValue));
+                    }
                 }
             }
         }
@@ -80,15 +88,14 @@ public class ClientCommandMapperReducer {
                         break;
                     }
                     if (storeObj.getStoreName().equals(storeName)) {
-                        boolean success = storeObj.purchaseProduct(productName, quantity);
+                        // the amount left after exactly this order, not a later re-read
+                        int new_available_amount = storeObj.purchase(productName, quantity);
+                        boolean success = new_available_amount >= 0;
                         if (success) {
-                            int new_available_amount = 0;
-                            for (Product product : storeObj.getProducts()) {
-                                if (product.getProductName().equals(productName))
-                                    new_available_amount = product.getAvailableAmount();
-                            }
                             results.add(new MapReduceFramework.Pair<>(storeName,
                                     "Successfully purchased " + quantity + " of " + productName + " from store " + storeName + "." + "|" + new_available_amount));
+                        } else if (storeObj.isFrozen()) {
+                            results.add(new MapReduceFramework.Pair<>(storeName, storeObj.frozenReply()));
                         } else {
                             results.add(new MapReduceFramework.Pair<>(storeName,
                                     "Purchase failed: insufficient stock or product not found."));
@@ -96,6 +103,10 @@ public class ClientCommandMapperReducer {
                     }
                     break;
                 }
+                case "PURCHASE_CART": {
+                    handleCartPurchase(key, storeObj, results);
+                    break;
+                }
                 default:
                     results.add(new MapReduceFramework.Pair<>(
                             storeObj.getStoreName(),
@@ -111,21 +122,20 @@ public class ClientCommandMapperReducer {
             switch (filterKey.toLowerCase()) {
                 case "foodcategory":
                     if (s.getFoodCategory().equalsIgnoreCase(filterValue)) {
-                        out.add(new MapReduceFramework.Pair<>(s.getStoreName(), gson.toJson(s)));
+                        out.add(new MapReduceFramework.Pair<>(s.getStoreName(), s.toJson()));
                     }
                     break;
                 case "stars":
                     try {
                         int stars = Integer.parseInt(filterValue);
                         if (s.getStars() == stars) {
-                            out.add(new MapReduceFramework.Pair<>(s.getStoreName(), gson.toJson(s)));
+                            out.add(new MapReduceFramework.Pair<>(s.getStoreName(), s.toJson()));
                         }
                     } catch (NumberFormatException ignored) { }
                     break;
                 case "avgprice":
-                    int cnt = Integer.parseInt(filterValue);
-                    if (s.getAveragePriceOfStoreSymbol().equals("$".repeat(cnt))) {
-                        out.add(new MapReduceFramework.Pair<>(s.getStoreName(), gson.toJson(s)));
+                    if (s.getAveragePriceOfStoreSymbol().equals(priceSymbol)) {
+                        out.add(new MapReduceFramework.Pair<>(s.getStoreName(), s.toJson()));
                     }
                     break;
                 case "radius":
@@ -139,7 +149,7 @@ public class ClientCommandMapperReducer {
                             double  distKm   = calculateDistance(
                                     s.getLongitude(), s.getLatitude(), clientLo, clientLa);
                             if (distKm <= radius) {
-                                out.add(new MapReduceFramework.Pair<>(s.getStoreName(), gson.toJson(s)));
+                                out.add(new MapReduceFramework.Pair<>(s.getStoreName(), s.toJson()));
                             }
                         } catch (NumberFormatException ignored) { }
                     }
@@ -155,7 +165,13 @@ public class ClientCommandMapperReducer {
             if (parts.length >= 2 && s.getStoreName().equals(parts[0].trim())) {
                 try {
                     int stars = Integer.parseInt(parts[1].trim());
-                    s.updateStoreReviews(stars);
+                    synchronized (s) {
+                        if (s.isFrozen()) {
+                            out.add(new MapReduceFramework.Pair<>(s.getStoreName(), s.frozenReply()));
+                            return;
+                        }
+                        s.updateStoreReviews(stars);
+                    }
                     out.add(new MapReduceFramework.Pair<>(s.getStoreName(),
                             "Gave " + "*".repeat(stars) + " Stars Review for: " + s.getStoreName()));
                 } catch (NumberFormatException e) {
@@ -164,6 +180,47 @@ public class ClientCommandMapperReducer {
             }
         }
 
+        /**
+         * Applies a whole cart to the store at once.
+         * Expects key format: "storeName|[{"ProductName":..,"Quantity":..}, ...]".
+         */
+        private void handleCartPurchase(String key, Store s,
+                                        List<MapReduceFramework.Pair<String,String>> out) {
+            String[] parts = key.split("\\|", 2);
+            if (parts.length < 2) {
+                out.add(new MapReduceFramework.Pair<>(s.getStoreName(), "Invalid data for PURCHASE_CART."));
+                return;
+            }
+            String storeName = parts[0].trim();
+            if (!s.getStoreName().equals(storeName)) {
+                return;
+            }
+            List<CartItem> items;
+            try {
+                items = gson.fromJson(parts[1], new TypeToken<List<CartItem>>(){}.getType());
+            } catch (JsonParseException e) {
+                out.add(new MapReduceFramework.Pair<>(storeName, "Invalid cart format."));
+                return;
+            }
+            Map<String, Integer> left = s.purchaseCart(items);
+            if (left == null && s.isFrozen()) {
+                out.add(new MapReduceFramework.Pair<>(storeName, s.frozenReply()));
+                return;
+            }
+            if (left == null) {
+                out.add(new MapReduceFramework.Pair<>(storeName,
+                        "Purchase failed: insufficient stock or product not found. Nothing was purchased."));
+                return;
+            }
+            int units = 0;
+            for (CartItem item : items) {
+                units += item.getQuantity();
+            }
+            out.add(new MapReduceFramework.Pair<>(storeName,
+                    "Successfully purchased " + units + " items from store " + storeName + "."
+                            + "|" + gson.toJson(left)));
+        }
+
         private void handleAggregation(String key, Store s,
                                        List<MapReduceFramework.Pair<String,String>> out) {
             String[] parts = key.split("=", 2);
@@ -183,13 +240,7 @@ public class ClientCommandMapperReducer {
         /** Haversine formula. */
         private double calculateDistance(double lon1, double lat1,
                                          double lon2, double lat2) {
-            int R = 6371;
-            double dLat = Math.toRadians(lat2 - lat1);
-            double dLon = Math.toRadians(lon2 - lon1);
-            double a = Math.sin(dLat/2) * Math.sin(dLat/2)
-                    + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
-                    * Math.sin(dLon/2) * Math.sin(dLon/2);
-            return 2 * R * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
+            return SpatialIndex.distanceKm(lat1, lon1, lat2, lon2);
         }
     }
 }
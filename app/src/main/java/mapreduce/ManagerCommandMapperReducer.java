@@ -5,6 +5,7 @@ import Manager.StoreManager;
 import model.Store;
 import model.Product;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -92,21 +93,19 @@ public class ManagerCommandMapperReducer {
                     break;
 
                 /* ---------- reports ---------- */
-                case "DELETED_PRODUCTS":
-                    results.add(new MapReduceFramework.Pair<>(
-                            "DELETED_PRODUCTS", productManager.getDeletedProductsReport()));
-                    break;
-
                 case "LIST_STORES":
                     results.add(new MapReduceFramework.Pair<>(
                             "LIST_STORES", storeObj.getStoreName()));
                     break;
 
                 case "AGGREGATE_SALES_BY_PRODUCT_NAME":
+                    // keyed by product so the combiner can fold a worker's stores into one pair;
+                    // the value keeps the per-store breakdown as a JSON object
                     String productName = query.trim().substring("ProductName=".length()).trim();
                     int aggregated = storeObj.getSalesForProduct(productName);
-                    results.add(new MapReduceFramework.Pair<>(
-                            storeObj.getStoreName(), String.valueOf(aggregated)));
+                    JsonObject perStore = new JsonObject();
+                    perStore.addProperty(storeObj.getStoreName(), aggregated);
+                    results.add(new MapReduceFramework.Pair<>(productName, perStore.toString()));
                     break;
 
                 default:
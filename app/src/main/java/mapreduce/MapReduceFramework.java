@@ -1,15 +1,21 @@
 package mapreduce;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Minimal Map-Reduce building blocks actually needed by Freefooders.
  *
  * – {@link Pair} is the simple tuple that workers pass around.
  * – {@link Mapper} is implemented by the two concrete mappers used on each worker.
+ * – {@link Reducer} merges the values of one key on a worker ({@link #combine});
+ *   the combiners are built from the reduce stage's typed reducers
+ *   ({@code Reduce.TypedReducers#combiner}), which fold the combined values
+ *   again across workers.
  *
- * No in-process Reducer or full MapReduce job runner is required by the current
- * architecture, so those constructs have been removed.
+ * No full MapReduce job runner is required by the current architecture.
  */
 public class MapReduceFramework {
 
@@ -38,4 +44,37 @@ public class MapReduceFramework {
     public interface Mapper<K, V, K2, V2> {
         List<Pair<K2, V2>> map(K key, V value);
     }
+
+    /**
+     * Contract for the combine phase on a worker.
+     *
+     * @param <K> key type
+     * @param <V> value type
+     */
+    public interface Reducer<K, V> {
+        V reduce(K key, List<V> values);
+    }
+
+    /**
+     * Runs a reducer as a combiner over one worker's intermediate pairs:
+     * groups them by key and reduces each group to a single pair. Every group
+     * goes through the reducer, even a group of one, so each combined value
+     * has the reducer's output format and the reduce stage never has to guess
+     * whether a value was combined.
+     *
+     * @param pairs   the mapper output
+     * @param reducer the reducer for the command
+     * @return one pair per distinct key, in first-seen order
+     */
+    public static <K, V> List<Pair<K, V>> combine(List<Pair<K, V>> pairs, Reducer<K, V> reducer) {
+        Map<K, List<V>> groups = new LinkedHashMap<>();
+        for (Pair<K, V> p : pairs) {
+            groups.computeIfAbsent(p.getKey(), k -> new ArrayList<>()).add(p.getValue());
+        }
+        List<Pair<K, V>> combined = new ArrayList<>(groups.size());
+        for (Map.Entry<K, List<V>> g : groups.entrySet()) {
+            combined.add(new Pair<>(g.getKey(), reducer.reduce(g.getKey(), g.getValue())));
+        }
+        return combined;
+    }
 }
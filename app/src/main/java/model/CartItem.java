@@ -0,0 +1,49 @@
+package model;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * One line of a PURCHASE_CART order: a product of the store and how many
+ * units of it to buy.
+ */
+public class CartItem {
+    @SerializedName("ProductName")
+    private String productName;
+
+    @SerializedName("Quantity")
+    private int quantity;
+
+    /**
+     * Constructs a cart line.
+     *
+     * @param productName the product to buy
+     * @param quantity    the number of units
+     */
+    public CartItem(String productName, int quantity) {
+        this.productName = productName;
+        this.quantity = quantity;
+    }
+
+    /**
+     * Default constructor for CartItem.
+     */
+    public CartItem() {}
+
+    /** Returns the product name. */
+    public String getProductName() {
+        return productName;
+    }
+
+    /** Returns the number of units. */
+    public int getQuantity() {
+        return quantity;
+    }
+
+    @Override
+    public String toString() {
+        return "CartItem{" +
+                "productName='" + productName + '\'' +
+                ", quantity=" + quantity +
+                '}';
+    }
+}
@@ -1,12 +1,20 @@
 package model;
 
 import com.google.gson.annotations.SerializedName;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.IntUnaryOperator;
 
 /**
  * Represents a product available in a store.
  * Contains details such as name, type, available stock, and price.
+ * <p>
+ * The available amount is updated with compare-and-set, so purchases and
+ * manager stock edits on the same product are linearizable without a lock.
  */
 public class Product {
+    private static final AtomicIntegerFieldUpdater<Product> AMOUNT =
+            AtomicIntegerFieldUpdater.newUpdater(Product.class, "availableAmount");
+
     @SerializedName("ProductName")
     private String productName;
 
@@ -14,7 +22,7 @@ public class Product {
     private String productType;
 
     @SerializedName("Available Amount")
-    private int availableAmount;
+    private volatile int availableAmount;
 
     @SerializedName("Price")
     private double price;
@@ -93,6 +101,55 @@ public class Product {
         this.availableAmount = availableAmount;
     }
 
+    /**
+     * Atomically adds to the available stock.
+     *
+     * @param delta the number of units to add
+     * @return the new available amount
+     */
+    public int addAvailableAmount(int delta) {
+        return AMOUNT.addAndGet(this, delta);
+    }
+
+    /**
+     * Atomically takes units out of stock if enough are available.
+     *
+     * @param quantity the number of units to take
+     * @return the new available amount, or -1 if there was not enough stock
+     *         (the amount is then left unchanged)
+     */
+    public int takeAvailableAmount(int quantity) {
+        while (true) {
+            int current = availableAmount;
+            if (current < quantity) {
+                return -1;
+            }
+            if (AMOUNT.compareAndSet(this, current, current - quantity)) {
+                return current - quantity;
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces the available stock with {@code change} applied to
+     * it, unless the result would be negative.
+     *
+     * @param change the new amount, given the current one; may be called more than once
+     * @return the amount before the change, or -1 if the change was refused
+     *         (the amount is then left unchanged)
+     */
+    public int updateAvailableAmount(IntUnaryOperator change) {
+        while (true) {
+            int current = availableAmount;
+            if (change.applyAsInt(current) < 0) {
+                return -1;
+            }
+            if (AMOUNT.compareAndSet(this, current, change.applyAsInt(current))) {
+                return current;
+            }
+        }
+    }
+
     /**
      * Gets the price of the product.
      *
@@ -2,13 +2,41 @@ package model;
 
 import java.util.List;
 import java.util.ArrayList;
+import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
 /**
  * Represents a store that sells products.
  * Contains store details such as name, location, category, rating, logo, products, and sales record.
+ * <p>
+ * Changes to the store's structure (products, reviews, prices) synchronize on
+ * the store instance, so callers that iterate {@link #getProducts()} directly
+ * should do the same. Orders do not: stock, revenue and sales counters are
+ * updated with compare-and-set, so orders for different products of the same
+ * store run in parallel and orders for the same product never oversell.
+ * Orders and other stock changes share the read side of the store's order
+ * lock; a cart takes the write side, so that it never holds stock that other
+ * buyers are refused and it then gives back.
+ * <p>
+ * A store can be {@linkplain #freeze() frozen}: it then refuses orders and
+ * changes, so that its state can be handed to another worker without a sale
+ * slipping in after the copy was taken.
+ * <p>
+ * Every change that takes effect is reported to the store's
+ * {@link StoreJournal}, if it has one; the {@code apply...} methods make a
+ * reported change again, e.g. when a log is replayed, and report nothing.
  */
 public class Store {
     /** The store's name. */
@@ -35,8 +63,8 @@ public class Store {
     @SerializedName("NoOfVotes")
     private int noOfVotes;
 
-    /** Total revenue generated by the store. */
-    private double totalRevenue = 0.0;
+    /** Total revenue generated by the store; updated with compare-and-set. */
+    private volatile double totalRevenue = 0.0;
 
     /** Average price of products in the store. */
     private double averagePrice;
@@ -55,10 +83,47 @@ public class Store {
 
     /** Map of product names to their sales record entries. */
     @SerializedName("SalesRecord")
-    private Map<String, SalesRecordEntry> salesRecord = new HashMap<>();
+    private ConcurrentMap<String, SalesRecordEntry> salesRecord = new ConcurrentHashMap<>();
 
-    /** Flag indicating whether a purchase order is currently being processed. */
-    private boolean orderInProgress = false;
+    /**
+     * Notified, while the store is locked, after a change to an attribute the
+     * owning StoreManager indexes (category, stars, price tier). Not serialized.
+     */
+    private transient Consumer<Store> changeListener;
+
+    /** Told about every change that takes effect; null for none. Not serialized. */
+    private transient volatile StoreJournal journal;
+
+    /** Bumped by every mutation; cached JSON is only valid for the version it was built from. */
+    private transient volatile long version;
+    private transient String cachedJson;
+    private transient long cachedJsonVersion = -1;
+
+    private static final Gson GSON = new Gson();
+
+    /** Shared by orders and stock changes, exclusive for a cart and for {@link #freeze}. */
+    private final transient ReadWriteLock orderLock = new ReentrantReadWriteLock();
+    /** Whether orders and changes are refused; checked under the order lock or the store's monitor. */
+    private transient volatile boolean frozen;
+
+    /**
+     * Product name (trimmed) to product, next to the {@link #products} list.
+     * Built lazily, so stores created by Gson get it on first use, and kept in
+     * step by addProduct, removeProduct and setProducts.
+     */
+    private transient volatile Map<String, Product> productIndex;
+
+    private static final VarHandle TOTAL_REVENUE;
+    private static final AtomicLongFieldUpdater<Store> VERSION =
+            AtomicLongFieldUpdater.newUpdater(Store.class, "version");
+    static {
+        try {
+            TOTAL_REVENUE = MethodHandles.lookup()
+                    .findVarHandle(Store.class, "totalRevenue", double.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     /**
      * Nested class representing a sales record entry for a product.
@@ -68,7 +133,10 @@ public class Store {
         private String productType;
 
         /** Quantity sold. */
-        private int quantity;
+        private volatile int quantity;
+
+        private static final AtomicIntegerFieldUpdater<SalesRecordEntry> QUANTITY =
+                AtomicIntegerFieldUpdater.newUpdater(SalesRecordEntry.class, "quantity");
 
         /**
          * Constructs a SalesRecordEntry with the given product type and quantity.
@@ -97,7 +165,7 @@ public class Store {
          * @param q the amount to add
          */
         public void addQuantity(int q) {
-            this.quantity += q;
+            QUANTITY.addAndGet(this, q);
         }
     }
 
@@ -117,10 +185,8 @@ public class Store {
      * @return total quantity sold, or 0 if not recorded
      */
     public int getSalesForProduct(String productName) {
-        if (salesRecord != null && salesRecord.containsKey(productName)) {
-            return salesRecord.get(productName).getQuantity();
-        }
-        return 0;
+        SalesRecordEntry entry = salesRecord != null ? salesRecord.get(productName) : null;
+        return entry != null ? entry.getQuantity() : 0;
     }
 
     /**
@@ -164,24 +230,45 @@ public class Store {
     }
 
     /**
-     * Look up a product by name in this store’s inventory.
+     * Look up a product by name in this store’s inventory, in constant time.
+     * Names are compared after trimming surrounding whitespace.
      *
      * @param productName the product name
      * @return the Product if found, or null if not present
      */
     public Product getProduct(String productName) {
-        if (products == null) return null;
-        for (Product p : products) {
-            if (p.getProductName().equals(productName)) {
-                return p;
+        if (productName == null) return null;
+        return productIndex().get(productName.trim());
+    }
+
+    /** Returns the name index, building it from the product list on first use. */
+    private Map<String, Product> productIndex() {
+        Map<String, Product> index = productIndex;
+        if (index != null) {
+            return index;
+        }
+        synchronized (this) {
+            if (productIndex != null) {
+                return productIndex;
             }
+            index = new ConcurrentHashMap<>();
+            if (products != null) {
+                for (Product p : products) {
+                    if (p.getProductName() != null) {
+                        // the first product with a name wins, as in a linear search
+                        index.putIfAbsent(p.getProductName().trim(), p);
+                    }
+                }
+            }
+            productIndex = index;
+            return index;
         }
-        return null;
     }
 
     /** Sets the store name. */
-    public void setStoreName(String storeName) {
+    public synchronized void setStoreName(String storeName) {
         this.storeName = storeName;
+        markModified();
     }
 
     /** Returns the latitude coordinate. */
@@ -190,8 +277,9 @@ public class Store {
     }
 
     /** Sets the latitude coordinate. */
-    public void setLatitude(double latitude) {
+    public synchronized void setLatitude(double latitude) {
         this.latitude = latitude;
+        markModified();
     }
 
     /** Returns the longitude coordinate. */
@@ -200,8 +288,9 @@ public class Store {
     }
 
     /** Sets the longitude coordinate. */
-    public void setLongitude(double longitude) {
+    public synchronized void setLongitude(double longitude) {
         this.longitude = longitude;
+        markModified();
     }
 
     /** Returns the food category. */
@@ -210,8 +299,10 @@ public class Store {
     }
 
     /** Sets the food category. */
-    public void setFoodCategory(String foodCategory) {
+    public synchronized void setFoodCategory(String foodCategory) {
         this.foodCategory = foodCategory;
+        markModified();
+        indexedAttributesChanged();
     }
 
     /** Returns the star rating. */
@@ -220,8 +311,10 @@ public class Store {
     }
 
     /** Sets the star rating. */
-    public void setStars(int stars) {
+    public synchronized void setStars(int stars) {
         this.stars = stars;
+        markModified();
+        indexedAttributesChanged();
     }
 
     /** Returns the number of votes. */
@@ -230,8 +323,9 @@ public class Store {
     }
 
     /** Sets the number of votes. */
-    public void setNoOfVotes(int noOfVotes) {
+    public synchronized void setNoOfVotes(int noOfVotes) {
         this.noOfVotes = noOfVotes;
+        markModified();
     }
 
     /** Returns the total revenue. */
@@ -242,6 +336,7 @@ public class Store {
     /** Sets the total revenue. */
     public void setTotalRevenue(double totalRevenue) {
         this.totalRevenue = totalRevenue;
+        markModified();
     }
 
     /** Returns the store logo path or URL. */
@@ -250,8 +345,9 @@ public class Store {
     }
 
     /** Sets the store logo path or URL. */
-    public void setStoreLogo(String storeLogo) {
+    public synchronized void setStoreLogo(String storeLogo) {
         this.storeLogo = storeLogo;
+        markModified();
     }
 
     /** Returns the list of products. */
@@ -260,8 +356,10 @@ public class Store {
     }
 
     /** Sets the list of products. */
-    public void setProducts(List<Product> products) {
+    public synchronized void setProducts(List<Product> products) {
         this.products = products;
+        this.productIndex = null;
+        markModified();
     }
 
     /** Returns the average price symbol. */
@@ -273,9 +371,11 @@ public class Store {
      * Calculates and sets the symbol for the store's average price.
      * Uses "$", "$$", or "$$$" based on thresholds.
      */
-    public void setAveragePriceOfStoreSymbol() {
+    public synchronized void setAveragePriceOfStoreSymbol() {
         if (products.isEmpty()) {
             averagePriceSymbol = "Not any products in the store";
+            markModified();
+            indexedAttributesChanged();
             return;
         }
         if (averagePrice < 5.0) {
@@ -285,6 +385,8 @@ public class Store {
         } else {
             averagePriceSymbol = "$$$";
         }
+        markModified();
+        indexedAttributesChanged();
     }
 
     /** Returns the average product price. */
@@ -295,88 +397,269 @@ public class Store {
     /**
      * Calculates and sets the average price of products in the store.
      */
-    public void setAveragePriceOfStore() {
+    public synchronized void setAveragePriceOfStore() {
         if (products.isEmpty()) {
             averagePrice = 0.0;
-            return;
-        }
-        double sum = 0.0;
-        for (Product product : products) {
-            sum += product.getPrice();
+        } else {
+            double sum = 0.0;
+            for (Product product : products) {
+                sum += product.getPrice();
+            }
+            averagePrice = sum / products.size();
         }
-        averagePrice = sum / products.size();
+        markModified();
     }
 
     /**
      * Attempts to purchase a specified quantity of a product.
-     * This method is synchronized to ensure sequential processing of orders.
      *
      * @param productName the name of the product
      * @param quantity    the quantity to purchase
      * @return true if purchase succeeded; false otherwise
      */
-    public synchronized boolean purchaseProduct(String productName, int quantity) {
-        // Wait if an order is already in progress.
-        while (orderInProgress) {
-            try {
-                wait();  // Wait for the current order to finish.
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return false;
+    public boolean purchaseProduct(String productName, int quantity) {
+        return purchase(productName, quantity) >= 0;
+    }
+
+    /**
+     * Attempts to purchase a specified quantity of a product without locking
+     * the store. The stock check and decrement are a single compare-and-set on
+     * the product, so concurrent orders can never take more than is available;
+     * revenue and the sales record are then updated atomically as well.
+     *
+     * @param productName the name of the product
+     * @param quantity    the quantity to purchase
+     * @return the amount left after this order, or -1 if the product is not
+     *         found or there is not enough stock
+     */
+    public int purchase(String productName, int quantity) {
+        if (quantity <= 0) {
+            return -1;
+        }
+        Product product = getProduct(productName);
+        if (product == null) {
+            // Product not found.
+            return -1;
+        }
+        orderLock.readLock().lock();
+        try {
+            if (frozen) {
+                return -1;
+            }
+            int left = product.takeAvailableAmount(quantity);
+            if (left < 0) {
+                // Insufficient stock for this order.
+                return -1;
             }
+            addRevenue(quantity * product.getPrice());
+            salesRecord.computeIfAbsent(product.getProductName(),
+                    name -> new SalesRecordEntry(product.getProductType(), 0)).addQuantity(quantity);
+            markModified();
+            StoreJournal j = journal;
+            if (j != null) {
+                j.sold(this, Map.of(product, quantity));
+            }
+            return left;
+        } finally {
+            orderLock.readLock().unlock();
         }
-        // Mark that an order is in progress.
-        orderInProgress = true;
+    }
+
+    /**
+     * Changes a product's stock (a restock, a correction) next to the orders,
+     * which may run at the same time, but never in the middle of a cart. The
+     * change is a compare-and-set, like an order's, so the two never
+     * overwrite each other.
+     *
+     * @param product a product of this store
+     * @param change  the new amount, given the current one
+     * @return the new amount; -1 if the change was refused because the amount
+     *         would be negative; null if the store is frozen
+     */
+    public Integer changeStock(Product product, IntUnaryOperator change) {
+        orderLock.readLock().lock();
         try {
-            for (Product product : products) {
-                if (product.getProductName().equals(productName)) {
-                    // Check if there's enough stock.
-                    if (product.getAvailableAmount() >= quantity) {
-                        product.setAvailableAmount(product.getAvailableAmount() - quantity);
-                        totalRevenue += quantity * product.getPrice();
-                        // Update sales record.
-                        if (salesRecord.containsKey(productName)) {
-                            salesRecord.get(productName).addQuantity(quantity);
-                        } else {
-                            salesRecord.put(productName, new SalesRecordEntry(product.getProductType(), quantity));
-                        }
-                        return true;
-                    } else {
-                        // Insufficient stock for this order.
-                        return false;
-                    }
+            if (frozen) {
+                return null;
+            }
+            int before = product.updateAvailableAmount(change);
+            if (before < 0) {
+                return -1;
+            }
+            int after = change.applyAsInt(before);
+            if (after != before) {
+                markModified();
+                StoreJournal j = journal;
+                if (j != null) {
+                    j.stockChanged(this, product, after - before);
                 }
             }
-            // Product not found.
-            return false;
+            return after;
+        } finally {
+            orderLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Purchases several products of this store as one all-or-nothing order.
+     * The cart holds the store's order lock exclusively, so no other order or
+     * stock change runs meanwhile: every line is checked first, and only if
+     * all of them can be served is any stock taken. A rejected cart leaves no
+     * trace, not even briefly, and never makes another buyer come up short.
+     *
+     * @param items the cart lines; repeated products are added together
+     * @return the amount left of each product after the order, in cart order,
+     *         or null if the cart was rejected
+     */
+    public Map<String, Integer> purchaseCart(List<CartItem> items) {
+        if (items == null || items.isEmpty()) {
+            return null;
+        }
+        Map<String, Integer> wanted = new LinkedHashMap<>();
+        for (CartItem item : items) {
+            if (item == null || item.getProductName() == null || item.getQuantity() <= 0) {
+                return null;
+            }
+            wanted.merge(item.getProductName().trim(), item.getQuantity(), Integer::sum);
+        }
+
+        Map<String, Product> lines = new LinkedHashMap<>();
+        for (String name : wanted.keySet()) {
+            Product product = getProduct(name);
+            if (product == null) {
+                return null;
+            }
+            lines.put(name, product);
+        }
+
+        orderLock.writeLock().lock();
+        try {
+            if (frozen) {
+                return null;
+            }
+            for (Map.Entry<String, Product> line : lines.entrySet()) {
+                if (line.getValue().getAvailableAmount() < wanted.get(line.getKey())) {
+                    return null;
+                }
+            }
+            Map<String, Integer> left = new LinkedHashMap<>();
+            Map<Product, Integer> sold = new LinkedHashMap<>();
+            for (Map.Entry<String, Product> line : lines.entrySet()) {
+                Product product = line.getValue();
+                int quantity = wanted.get(line.getKey());
+                // cannot fail: nothing else touches the stock while we hold the lock
+                left.put(line.getKey(), product.takeAvailableAmount(quantity));
+                addRevenue(quantity * product.getPrice());
+                salesRecord.computeIfAbsent(product.getProductName(),
+                        name -> new SalesRecordEntry(product.getProductType(), 0)).addQuantity(quantity);
+                sold.put(product, quantity);
+            }
+            markModified();
+            StoreJournal j = journal;
+            if (j != null) {
+                j.sold(this, sold);
+            }
+            return left;
+        } finally {
+            orderLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stops the store taking orders and changes, and returns its final state.
+     * Waits for the orders in progress; any order or change that comes after
+     * fails instead of landing on a copy that has already been handed off.
+     *
+     * @return the store's JSON, as of the moment it froze
+     */
+    public String freeze() {
+        orderLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                frozen = true;
+                return toJson();
+            }
+        } finally {
+            orderLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Freezes or thaws the store without rendering it, e.g. to serve a stand-in
+     * copy read-only until the live state arrives.
+     */
+    public void setFrozen(boolean frozen) {
+        orderLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                this.frozen = frozen;
+            }
         } finally {
-            // Clear the order flag and notify any waiting threads.
-            orderInProgress = false;
-            notifyAll();
+            orderLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Whether the store refuses orders and changes. Callers that change the
+     * store under its monitor check this under the monitor too.
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /** The reply for an order or change refused because the store is frozen. */
+    public String frozenReply() {
+        return "Store " + storeName + " is moving to another worker; please retry.";
+    }
+
+    private void addRevenue(double amount) {
+        double current;
+        do {
+            current = totalRevenue;
+        } while (!TOTAL_REVENUE.compareAndSet(this, current, current + amount));
+    }
+
     /**
      * Adds a product to the store's inventory.
      *
      * @param product the product to add
      */
-    public void addProduct(Product product) {
+    public synchronized void addProduct(Product product) {
+        StoreJournal j = journal;
+        if (j != null) {
+            j.productAdded(this, product);      // before an order can reach it
+        }
         if (this.products == null) {
             this.products = new ArrayList<>();
         }
         this.products.add(product);
+        if (product.getProductName() != null) {
+            productIndex().putIfAbsent(product.getProductName().trim(), product);
+        }
+        markModified();
     }
 
     /**
-     * Removes a product from the store's inventory by name.
+     * Removes a product from the store's inventory by name. Names are
+     * compared trimmed, as {@link #getProduct} compares them, so every
+     * product that lookup could return goes.
      *
      * @param productName the name of the product to remove
      * @return true if the product was removed; false otherwise
      */
-    public boolean removeProduct(String productName) {
-        if (this.products != null) {
-            return this.products.removeIf(p -> p.getProductName().equals(productName));
+    public synchronized boolean removeProduct(String productName) {
+        String key = productName.trim();
+        if (this.products != null && this.products.removeIf(
+                p -> p.getProductName() != null && p.getProductName().trim().equals(key))) {
+            if (productIndex != null) {
+                productIndex.remove(key);
+            }
+            markModified();
+            StoreJournal j = journal;
+            if (j != null) {
+                j.productRemoved(this, productName);
+            }
+            return true;
         }
         return false;
     }
@@ -386,19 +669,128 @@ public class Store {
      *
      * @param review star rating (1-5) from a customer
      */
-    public void updateStoreReviews(int review) {
+    public synchronized void updateStoreReviews(int review) {
         int reviewSum = this.stars * this.noOfVotes;
         reviewSum += review;
         this.stars = reviewSum / (noOfVotes + 1);
         this.noOfVotes += 1;
+        markModified();
+        indexedAttributesChanged();
+        StoreJournal j = journal;
+        if (j != null) {
+            j.reviewed(this, stars, noOfVotes);
+        }
+    }
+
+    /**
+     * Makes a sale reported to a {@link StoreJournal} again: the stock is
+     * taken whatever is left, since the sale happened, and revenue and the
+     * sales record grow as they did. If the product has been removed since,
+     * only revenue and the sales record change.
+     */
+    public void applySale(String productName, String productType, int quantity, double price) {
+        Product product = getProduct(productName);
+        if (product != null) {
+            product.addAvailableAmount(-quantity);
+        }
+        addRevenue(quantity * price);
+        salesRecord.computeIfAbsent(productName,
+                name -> new SalesRecordEntry(productType, 0)).addQuantity(quantity);
+        markModified();
+    }
+
+    /** Makes a stock change reported to a {@link StoreJournal} again. */
+    public void applyStockChange(String productName, int delta) {
+        Product product = getProduct(productName);
+        if (product != null) {
+            product.addAvailableAmount(delta);
+            markModified();
+        }
+    }
+
+    /**
+     * Makes a rating reported to a {@link StoreJournal} again, unless the
+     * store already counts as many votes: a later review has been applied.
+     */
+    public synchronized void applyRating(int stars, int votes) {
+        if (votes > noOfVotes) {
+            this.stars = stars;
+            this.noOfVotes = votes;
+            markModified();
+            indexedAttributesChanged();
+        }
     }
 
     /** Recalculates average price and its symbol. */
-    public void updateStorePrices() {
+    public synchronized void updateStorePrices() {
         setAveragePriceOfStore();
         setAveragePriceOfStoreSymbol();
     }
 
+    /**
+     * Records a change made to this store's state from outside its own methods,
+     * e.g. a product amount set through {@link #getProducts()}. Callers should
+     * hold the store's lock while changing the state.
+     */
+    public void markModified() {
+        VERSION.incrementAndGet(this);
+    }
+
+    /** Returns the mutation counter; it changes whenever the store's state does. */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the store serialized with Gson. The JSON is cached and rebuilt
+     * only after the store has been modified, so repeated reads of an
+     * unchanged store reuse the same string.
+     *
+     * @return the JSON form of the store
+     */
+    public synchronized String toJson() {
+        // read the version first: an order landing during serialization bumps it
+        // again, so the next call rebuilds instead of reusing a stale copy
+        long v = version;
+        if (cachedJsonVersion != v || cachedJson == null) {
+            cachedJson = GSON.toJson(this);
+            cachedJsonVersion = v;
+        }
+        return cachedJson;
+    }
+
+    /**
+     * Sets the journal told about every change that takes effect, replacing
+     * any previous one.
+     *
+     * @param journal the journal, or null to detach
+     */
+    public void setJournal(StoreJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Registers the listener told about changes to indexed attributes,
+     * replacing any previous one.
+     *
+     * @param listener the listener, or null to detach
+     */
+    public synchronized void setChangeListener(Consumer<Store> listener) {
+        this.changeListener = listener;
+    }
+
+    /** Returns the current change listener, or null. */
+    public synchronized Consumer<Store> getChangeListener() {
+        return changeListener;
+    }
+
+    private void indexedAttributesChanged() {
+        Consumer<Store> l = changeListener;
+        if (l != null) {
+            l.accept(this);
+        }
+    }
+
     /**
      * Returns a string representation of the store.
      *
@@ -0,0 +1,34 @@
+package model;
+
+import java.util.Map;
+
+/**
+ * Told about every change a {@link Store} makes to its own state, e.g. to log
+ * it durably. Only changes that take effect are reported; refused orders and
+ * changes never are.
+ * <p>
+ * Each change is reported as its effect (units sold, a stock delta, the new
+ * rating), not as the request that caused it. Stock is only ever reported as
+ * a delta and a rating only grows in votes, so applying the reports of
+ * concurrent changes in any order reaches the same state. A product is
+ * reported added before anyone can order it.
+ * <p>
+ * Called while the store holds the lock that makes the change, so
+ * implementations must be quick and must not call back into the store.
+ */
+public interface StoreJournal {
+    /** One order sold these quantities of these products of the store. */
+    void sold(Store store, Map<Product, Integer> quantities);
+
+    /** A product's stock changed by {@code delta} units, outside an order. */
+    void stockChanged(Store store, Product product, int delta);
+
+    /** The store's rating is now {@code stars}, over {@code votes} votes. */
+    void reviewed(Store store, int stars, int votes);
+
+    /** A product is about to be added to the store. */
+    void productAdded(Store store, Product product);
+
+    /** A product was removed from the store. */
+    void productRemoved(Store store, String productName);
+}
@@ -0,0 +1,130 @@
+package protocol;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Loopback throughput comparison of the line protocol and the binary framing.
+ * <p>
+ * Both sides run in this process: an echo server answers every request with a
+ * payload of the requested size, and the client measures request/response
+ * round trips over one persistent connection, the way the Master talks to its
+ * workers. Usage:
+ * <pre>
+ *   java protocol.WireBenchmark [payloadBytes] [requests]
+ * </pre>
+ */
+public class WireBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int payloadBytes = args.length > 0 ? Integer.parseInt(args[0]) : 64 * 1024;
+        int requests     = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        String payload = searchLikePayload(payloadBytes);
+        System.out.printf("payload=%d bytes, requests=%d%n", payload.length(), requests);
+
+        // warm up both paths before measuring
+        runText(payload, requests / 4);
+        runBinary(payload, requests / 4);
+
+        report("text  ", runText(payload, requests), payload.length(), requests);
+        report("binary", runBinary(payload, requests), payload.length(), requests);
+    }
+
+    /** A JSON-ish payload resembling a SEARCH result. */
+    private static String searchLikePayload(int size) {
+        StringBuilder sb = new StringBuilder(size + 128);
+        sb.append('{');
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("\"Store").append(i)
+              .append("\":\"{\\\"StoreName\\\":\\\"Store").append(i)
+              .append("\\\",\\\"FoodCategory\\\":\\\"pizzeria\\\",\\\"Stars\\\":4},");
+        }
+        sb.setCharAt(sb.length() - 1, '}');
+        return sb.toString();
+    }
+
+    private static long runText(String payload, int requests) throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread echo = new Thread(() -> {
+                try (Socket s = server.accept();
+                     BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                     PrintWriter out = new PrintWriter(new BufferedWriter(
+                             new OutputStreamWriter(s.getOutputStream())), false)) {
+                    String command;
+                    while ((command = in.readLine()) != null) {
+                        String data  = in.readLine();
+                        String jobId = in.readLine();
+                        out.println(jobId + " CMD_RESPONSE:" + data);
+                        out.flush();
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            echo.start();
+
+            try (Socket s = new Socket("localhost", server.getLocalPort())) {
+                s.setTcpNoDelay(true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                PrintWriter out = new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(s.getOutputStream())), false);
+                long start = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    out.println("SEARCH");
+                    out.println(payload);
+                    out.println(i);
+                    out.flush();
+                    String line = in.readLine();
+                    // the receiver has to scan every character to find the end of the line
+                    // and then split the jobId off again
+                    line.substring(line.indexOf(' ') + 1);
+                }
+                return System.nanoTime() - start;
+            }
+        }
+    }
+
+    private static long runBinary(String payload, int requests) throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread echo = new Thread(() -> {
+                try (Socket s = server.accept();
+                     DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+                    WireProtocol.acceptPreamble(in, out);
+                    WireProtocol.Frame f;
+                    while ((f = WireProtocol.readFrame(in)) != null) {
+                        WireProtocol.writeFrame(out, new WireProtocol.Frame(
+                                WireProtocol.RESPONSE, f.getJobId(), "CMD_RESPONSE:" + f.getPayload()));
+                        out.flush();
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            echo.start();
+
+            try (Socket s = new Socket("localhost", server.getLocalPort())) {
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                WireProtocol.writePreamble(out);
+                out.flush();
+                WireProtocol.readPreamble(in);
+                long start = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    WireProtocol.writeFrame(out, new WireProtocol.Frame("SEARCH", String.valueOf(i), payload));
+                    out.flush();
+                    WireProtocol.readFrame(in);
+                }
+                return System.nanoTime() - start;
+            }
+        }
+    }
+
+    private static void report(String name, long nanos, int payloadBytes, int requests) {
+        double secs = nanos / 1e9;
+        System.out.printf("%s %8.0f req/s  %7.1f MB/s  %6.1f us/req%n",
+                name, requests / secs, 2.0 * payloadBytes * requests / secs / (1 << 20),
+                nanos / 1e3 / requests);
+    }
+}
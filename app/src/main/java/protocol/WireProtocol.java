@@ -0,0 +1,269 @@
+package protocol;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Versioned, length-prefixed binary framing used next to the original
+ * line protocol on the Client↔Master, Master↔Worker and Worker↔Reduce hops.
+ *
+ * <h3>Negotiation</h3>
+ * A binary peer opens the connection with a 4 byte preamble
+ * {@code 0xFF 'F' 'B' <version>}. No text command can start with {@code 0xFF},
+ * so servers peek at the first byte and fall back to the line protocol for
+ * everything else. The server answers with its own preamble carrying the
+ * version it will speak; clients may pipeline their first frame right behind
+ * their preamble.
+ *
+ * <h3>Frame</h3>
+ * <pre>
+ *   int    length           bytes that follow
+ *   short  command code     index into the CODES table; 0 = command name follows
+ *   [UTF   command name]    only for code 0
+ *   UTF    jobId            may be empty
+ *   int    payload length
+ *   byte[] payload          UTF-8, the request's remaining lines joined by '\n'
+ * </pre>
+ * The payload carries exactly what the line protocol sends after the command,
+ * e.g. the data line for client and worker commands, or
+ * {@code expectedCount\nworkerId\nmappingJson} for a reduce partial. Nothing in it is
+ * ever split on a delimiter to find the frame boundaries.
+ */
+public final class WireProtocol {
+    public static final byte MAGIC_0 = (byte) 0xFF;
+    public static final byte MAGIC_1 = 'F';
+    public static final byte MAGIC_2 = 'B';
+    public static final byte VERSION = 1;
+
+    /** Response frames always use this command. */
+    public static final String RESPONSE = "RESPONSE";
+
+    /** Largest frame accepted from a peer. */
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Whether this process speaks the binary protocol when it initiates a
+     * connection ({@code -Dfreefood.wire=text} falls back to the line protocol).
+     * Servers always accept both.
+     */
+    public static final boolean ENABLED =
+            !"text".equalsIgnoreCase(System.getProperty("freefood.wire", "binary"));
+
+    /** Stable command codes; never reuse or renumber an entry. */
+    private static final String[] CODES = {
+            null,                                 // 0: name sent explicitly
+            RESPONSE,
+            "SEARCH", "LIST_STORES", "AGGREGATE_SALES_BY_PRODUCT_NAME", "DELETED_PRODUCTS",
+            "PURCHASE_PRODUCT", "REVIEW", "GET_STOCK", "STORE_DETAILS", "GET_LOGO",
+            "ADD_STORE", "REMOVE_STORE", "ADD_PRODUCT", "REMOVE_PRODUCT",
+            "UPDATE_PRODUCT_AMOUNT", "INCREMENT_PRODUCT_AMOUNT", "DECREMENT_PRODUCT_AMOUNT",
+            "RELOAD", "DECREMENT_ID", "REGISTER", "LOGIN",
+            "PURCHASE_CART", "STORE_HANDOFF"
+    };
+    private static final Map<String, Short> CODE_BY_NAME = new HashMap<>();
+    static {
+        for (short i = 1; i < CODES.length; i++) {
+            CODE_BY_NAME.put(CODES[i], i);
+        }
+    }
+
+    private WireProtocol() {}
+
+    /** One decoded frame. */
+    public static class Frame {
+        private final String command;
+        private final String jobId;
+        private final String payload;
+
+        public Frame(String command, String jobId, String payload) {
+            this.command = command;
+            this.jobId   = jobId == null ? "" : jobId;
+            this.payload = payload == null ? "" : payload;
+        }
+
+        public String getCommand() { return command; }
+        public String getJobId()   { return jobId; }
+        public String getPayload() { return payload; }
+    }
+
+    /* ---------- negotiation ---------- */
+
+    public static void writePreamble(OutputStream out) throws IOException {
+        out.write(new byte[]{MAGIC_0, MAGIC_1, MAGIC_2, VERSION});
+    }
+
+    /**
+     * Reads the peer's preamble.
+     *
+     * @return the version announced by the peer
+     * @throws IOException if the bytes are not a valid preamble
+     */
+    public static int readPreamble(DataInputStream in) throws IOException {
+        byte[] p = new byte[4];
+        in.readFully(p);
+        if (p[0] != MAGIC_0 || p[1] != MAGIC_1 || p[2] != MAGIC_2) {
+            throw new IOException("Not a binary wire preamble");
+        }
+        return p[3];
+    }
+
+    /**
+     * Server side: peeks at the first byte of a connection without consuming it.
+     *
+     * @param in a stream that supports mark/reset
+     * @return true if the peer opened with the binary preamble
+     */
+    public static boolean isBinary(InputStream in) throws IOException {
+        in.mark(1);
+        int b = in.read();
+        in.reset();
+        return b == (MAGIC_0 & 0xFF);
+    }
+
+    /**
+     * Server side: consumes the client's preamble and answers with ours.
+     *
+     * @throws IOException if the client requires a newer protocol version
+     */
+    public static void acceptPreamble(DataInputStream in, OutputStream out) throws IOException {
+        int peer = readPreamble(in);
+        writePreamble(out);
+        out.flush();
+        if (peer > VERSION) {
+            throw new IOException("Unsupported wire version " + peer);
+        }
+    }
+
+    /* ---------- frames ---------- */
+
+    /**
+     * Writes one frame.
+     *
+     * @throws IOException if the frame is larger than {@link #MAX_FRAME_BYTES},
+     *         which the peer would reject; nothing is written then
+     */
+    public static void writeFrame(DataOutputStream out, Frame f) throws IOException {
+        byte[] payload = f.getPayload().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+        DataOutputStream h = new DataOutputStream(header);
+        Short code = CODE_BY_NAME.get(f.getCommand());
+        if (code != null) {
+            h.writeShort(code);
+        } else {
+            h.writeShort(0);
+            h.writeUTF(f.getCommand());
+        }
+        h.writeUTF(f.getJobId());
+        h.writeInt(payload.length);
+
+        long length = (long) header.size() + payload.length;
+        if (length > MAX_FRAME_BYTES) {
+            throw new IOException("Frame of " + length + " bytes exceeds " + MAX_FRAME_BYTES);
+        }
+        out.writeInt((int) length);
+        header.writeTo(out);
+        out.write(payload);
+    }
+
+    /**
+     * Reads one frame.
+     *
+     * @return the frame, or null if the peer closed the connection between frames
+     * @throws IOException if the frame is malformed, e.g. its parts do not add
+     *         up to its length
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad frame length " + length);
+        }
+        // read the header from the frame's own bytes, so that it cannot run past them
+        byte[] body = new byte[length];
+        in.readFully(body);
+        DataInputStream frame = new DataInputStream(new ByteArrayInputStream(body));
+        String command, jobId;
+        int n;
+        try {
+            int code = frame.readUnsignedShort();
+            if (code == 0) {
+                command = frame.readUTF();
+            } else if (code < CODES.length) {
+                command = CODES[code];
+            } else {
+                throw new IOException("Unknown command code " + code);
+            }
+            jobId = frame.readUTF();
+            n = frame.readInt();
+        } catch (EOFException e) {
+            throw new IOException("Frame header longer than the frame's " + length + " bytes");
+        }
+        if (n != frame.available()) {
+            throw new IOException("Payload length " + n + " does not match the frame's remaining "
+                    + frame.available() + " bytes");
+        }
+        return new Frame(command, jobId, new String(body, length - n, n, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Client helper: sends one request over a fresh binary connection without
+     * waiting for the answer, like the line protocol's fire-and-forget sends.
+     */
+    public static void sendOneWay(String host, int port, String command, String data, String jobId)
+            throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            writePreamble(out);
+            writeFrame(out, new Frame(command, jobId, data));
+            out.flush();
+        }
+    }
+
+    /**
+     * Client helper: sends one request over a fresh binary connection and
+     * returns the response payload.
+     */
+    public static String request(String host, int port, String command, String data, String jobId)
+            throws IOException {
+        return request(host, port, command, data, jobId, 0);
+    }
+
+    /**
+     * Like {@link #request(String, int, String, String, String)}, but gives up
+     * if the server does not answer in time.
+     *
+     * @param timeoutMs how long to wait for the answer; 0 waits forever
+     * @throws java.net.SocketTimeoutException if the answer took longer
+     */
+    public static String request(String host, int port, String command, String data, String jobId,
+                                 int timeoutMs) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMs);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            // pipeline the first frame right behind the preamble
+            writePreamble(out);
+            writeFrame(out, new Frame(command, jobId, data));
+            out.flush();
+            if (readPreamble(in) > VERSION) {
+                throw new IOException("Server answered with an unknown wire version");
+            }
+            Frame resp = readFrame(in);
+            if (resp == null) {
+                throw new EOFException("No response from " + host + ":" + port);
+            }
+            return resp.getPayload();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package Manager;
+
+import model.Store;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static model.Fixtures.store;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpatialIndexTest {
+
+    /** What a full scan would return. */
+    private static Set<String> scan(List<Store> stores, double lat, double lon, double radiusKm) {
+        return stores.stream()
+                .filter(s -> SpatialIndex.distanceKm(lat, lon, s.getLatitude(), s.getLongitude()) <= radiusKm)
+                .map(Store::getStoreName)
+                .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private static Set<String> names(List<Store> stores) {
+        return stores.stream().map(Store::getStoreName).collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    @Test
+    void radiusQueriesMatchAFullScan() {
+        Random random = new Random(42);
+        List<Store> stores = new ArrayList<>();
+        SpatialIndex index = new SpatialIndex();
+        for (int i = 0; i < 5_000; i++) {
+            // most around Athens, some anywhere, including the poles and the antimeridian
+            Store s = i % 5 == 0
+                    ? store("S" + i, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180)
+                    : store("S" + i, 37.9 + random.nextGaussian() * 0.2, 23.7 + random.nextGaussian() * 0.2);
+            stores.add(s);
+            index.add(s);
+        }
+        stores.add(store("East", 10, 179.99));
+        stores.add(store("West", 10, -179.99));
+        stores.add(store("North", 89.99, 0));
+        stores.forEach(index::add);
+
+        double[][] queries = {
+                {37.9, 23.7, 0}, {37.9, 23.7, 1}, {37.9, 23.7, 5}, {37.95, 23.65, 30},
+                {10, 180, 50}, {10, -179.9, 5}, {89.9, 90, 100}, {-60, 10, 2_000}, {0, 0, 25_000},
+        };
+        for (double[] q : queries) {
+            assertEquals(scan(stores, q[0], q[1], q[2]), names(index.withinRadius(q[0], q[1], q[2])),
+                    "radius " + q[2] + " km around " + q[0] + "," + q[1]);
+        }
+    }
+
+    @Test
+    void movedAndRemovedStoresAreFoundWhereTheyAre() {
+        SpatialIndex index = new SpatialIndex();
+        index.add(store("PizzaWorld", 37.98, 23.73));
+        index.add(store("SweetTooth", 37.98, 23.74));
+        assertEquals(2, index.size());
+
+        index.add(store("PizzaWorld", 40.64, 22.94));       // moved to Thessaloniki
+        assertEquals(2, index.size());
+        assertEquals(Set.of("SweetTooth"), names(index.withinRadius(37.98, 23.73, 5)));
+        assertEquals(Set.of("PizzaWorld"), names(index.withinRadius(40.64, 22.94, 5)));
+
+        index.remove("SweetTooth");
+        index.remove("BurgerZone");
+        assertEquals(1, index.size());
+        assertTrue(index.withinRadius(37.98, 23.73, 5).isEmpty());
+        assertTrue(index.withinRadius(37.98, 23.73, -1).isEmpty());
+    }
+}
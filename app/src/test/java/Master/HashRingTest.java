@@ -0,0 +1,94 @@
+package Master;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+    private static final int KEYS = 20_000;
+
+    private static List<String> keys() {
+        List<String> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add("Store-" + i);
+        }
+        return keys;
+    }
+
+    @Test
+    void spreadsKeysEvenlyOverTheNodes() {
+        HashRing ring = HashRing.of(List.of("w1", "w2", "w3", "w4"), 128);
+        Map<String, Integer> perNode = new HashMap<>();
+        for (String key : keys()) {
+            perNode.merge(ring.ownerOf(key), 1, Integer::sum);
+        }
+        assertEquals(4, perNode.size());
+        double fair = KEYS / 4.0;
+        for (Map.Entry<String, Integer> e : perNode.entrySet()) {
+            assertTrue(Math.abs(e.getValue() - fair) < fair * 0.2,
+                    e.getKey() + " owns " + e.getValue() + " of " + KEYS + " keys");
+        }
+    }
+
+    @Test
+    void joiningNodeTakesKeysOnlyFromOthers() {
+        HashRing before = HashRing.of(List.of("w1", "w2", "w3", "w4"), 128);
+        HashRing after = HashRing.of(List.of("w1", "w2", "w3", "w4", "w5"), 128);
+        int moved = 0;
+        for (String key : keys()) {
+            String was = before.ownerOf(key), is = after.ownerOf(key);
+            if (!was.equals(is)) {
+                assertEquals("w5", is, key + " moved between old nodes");
+                moved++;
+            }
+        }
+        // about a fifth of the keys move, all of them to the new node
+        assertTrue(Math.abs(moved - KEYS / 5.0) < KEYS / 5.0 * 0.25, moved + " keys moved");
+    }
+
+    @Test
+    void withoutUndoesAJoin() {
+        HashRing four = HashRing.of(List.of("w1", "w2", "w3", "w4"), 64);
+        HashRing back = HashRing.of(List.of("w1", "w2", "w3", "w4", "w5"), 64).without("w5");
+        for (String key : keys()) {
+            assertEquals(four.ownerOf(key), back.ownerOf(key));
+        }
+    }
+
+    @Test
+    void specRebuildsTheSameRing() {
+        HashRing ring = HashRing.of(List.of("w2", "w1", "w3"), 32);
+        HashRing copy = HashRing.fromSpec(ring.toSpec());
+        assertEquals(ring.nodes(), copy.nodes());
+        assertEquals(32, copy.vnodes());
+        for (String key : keys()) {
+            assertEquals(ring.ownerOf(key), copy.ownerOf(key));
+        }
+    }
+
+    @Test
+    void ownersOfListsDistinctNodesOwnerFirst() {
+        HashRing ring = HashRing.of(List.of("w1", "w2", "w3"), 16);
+        for (String key : List.of("PizzaWorld", "SweetTooth", "CoffeeCorner")) {
+            List<String> owners = ring.ownersOf(key, 5);
+            assertEquals(3, owners.size());
+            assertEquals(3, owners.stream().distinct().count());
+            assertEquals(ring.ownerOf(key), owners.get(0));
+        }
+    }
+
+    @Test
+    void emptyRingOwnsNothing() {
+        HashRing ring = HashRing.of(List.of(), 16);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.ownerOf("PizzaWorld"));
+        assertTrue(ring.ownersOf("PizzaWorld", 2).isEmpty());
+    }
+}
@@ -0,0 +1,117 @@
+package Worker;
+
+import model.Fixtures;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WriteAheadLogTest {
+
+    /** Opens the log in {@code dir} and replays it into {@code records} as "command data". */
+    private static WriteAheadLog reopen(Path dir, List<String> records, String[] snapshot) throws IOException {
+        WriteAheadLog log = WriteAheadLog.open(dir);
+        log.recover(state -> snapshot[0] = state, (command, data) -> records.add(command + " " + data));
+        return log;
+    }
+
+    @Test
+    void replaysAppliedRecordsInOrder(@TempDir Path dir) throws IOException {
+        WriteAheadLog log = reopen(dir, new ArrayList<>(), new String[1]);
+        log.start(() -> "{}");
+        assertEquals("ok", log.apply(false, () -> {
+            log.record("SOLD", "PizzaWorld|Pepperoni|5");
+            log.record("SOLD", "PizzaWorld|Margherita|1");
+            return "ok";
+        }));
+        assertEquals("refused", log.apply(false, () -> "refused"));
+        log.apply(true, () -> {
+            log.record("REMOVE_STORE", "CoffeeCorner");
+            return "ok";
+        });
+
+        // no close: the records must be on disk as soon as apply returns
+        List<String> replayed = new ArrayList<>();
+        String[] snapshot = new String[1];
+        reopen(dir, replayed, snapshot);
+        assertNull(snapshot[0]);
+        assertEquals(List.of(
+                "SOLD PizzaWorld|Pepperoni|5",
+                "SOLD PizzaWorld|Margherita|1",
+                "REMOVE_STORE CoffeeCorner"), replayed);
+        log.close();
+    }
+
+    @Test
+    void closeLeavesOnlyASnapshotToRestore(@TempDir Path dir) throws IOException {
+        WriteAheadLog log = reopen(dir, new ArrayList<>(), new String[1]);
+        log.start(() -> "{\"stores\":[]}");
+        sold(log, "PizzaWorld|Pepperoni|5");
+        log.close();
+
+        List<String> replayed = new ArrayList<>();
+        String[] snapshot = new String[1];
+        WriteAheadLog again = reopen(dir, replayed, snapshot);
+        assertEquals("{\"stores\":[]}", snapshot[0]);
+        assertEquals(List.of(), replayed);
+
+        // records after the snapshot are replayed on top of it
+        again.start(() -> "{}");
+        sold(again, "SweetTooth|Cake|4");
+        replayed.clear();
+        reopen(dir, replayed, snapshot);
+        assertEquals("{\"stores\":[]}", snapshot[0]);
+        assertEquals(List.of("SOLD SweetTooth|Cake|4"), replayed);
+        again.close();
+    }
+
+    @Test
+    void tornRecordEndsTheReplay(@TempDir Path dir) throws IOException {
+        WriteAheadLog log = reopen(dir, new ArrayList<>(), new String[1]);
+        log.start(() -> "{}");
+        sold(log, "SweetTooth|Cake|4");
+        sold(log, "SweetTooth|Cake|5");
+
+        // a crash in the middle of the next write: a length, a checksum, half a body
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.filter(p -> p.getFileName().toString().startsWith("wal-")).findFirst().orElseThrow();
+        }
+        Files.write(segment, new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 0, 0, 0}, StandardOpenOption.APPEND);
+
+        List<String> replayed = new ArrayList<>();
+        reopen(dir, replayed, new String[1]);
+        assertEquals(List.of("SOLD SweetTooth|Cake|4", "SOLD SweetTooth|Cake|5"), replayed);
+        log.close();
+    }
+
+    @Test
+    void concurrentChangesAreAllDurable(@TempDir Path dir) throws IOException, InterruptedException {
+        WriteAheadLog log = reopen(dir, new ArrayList<>(), new String[1]);
+        log.start(() -> "{}");
+        Fixtures.hammer(8, 250, () -> sold(log, "PizzaWorld|Pepperoni|1"));
+        assertThrows(IllegalStateException.class, () -> log.record("SOLD", "PizzaWorld|Pepperoni|1"));
+
+        List<String> replayed = new ArrayList<>();
+        reopen(dir, replayed, new String[1]);
+        assertEquals(2_000, replayed.size());
+        log.close();
+    }
+
+    private static void sold(WriteAheadLog log, String data) {
+        log.apply(false, () -> {
+            log.record("SOLD", data);
+            return null;
+        });
+    }
+}
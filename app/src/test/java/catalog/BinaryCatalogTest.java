@@ -0,0 +1,77 @@
+package catalog;
+
+import model.Product;
+import model.Store;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static model.Fixtures.store;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryCatalogTest {
+
+    @Test
+    void findsWhatWasWritten(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("stores.bin");
+        long bytes = BinaryCatalog.write(List.of(
+                store("SweetTooth", 37.98, 23.73, new Product("Chocolate Cake", "dessert", 20, 4.5)),
+                store("PizzaWorld", 37.99, 23.72,
+                        new Product("Pepperoni", "pizza", 120, 9.0),
+                        new Product("Margherita", "pizza", 80, 7.5)),
+                store("Ωμέγα", -33.86, 151.2)), file);
+        assertEquals(Files.size(file), bytes);
+
+        BinaryCatalog catalog = BinaryCatalog.open(file);
+        assertEquals(3, catalog.size());
+        assertEquals(List.of("PizzaWorld", "SweetTooth", "Ωμέγα"), catalog.names());
+
+        Store pizza = catalog.find("PizzaWorld");
+        assertEquals("PizzaWorld", pizza.getStoreName());
+        assertEquals(37.99, pizza.getLatitude(), 0);
+        assertEquals(23.72, pizza.getLongitude(), 0);
+        assertEquals("pizzeria", pizza.getFoodCategory());
+        assertEquals(4, pizza.getStars());
+        assertEquals(17, pizza.getNoOfVotes());
+        assertEquals("logo/PizzaWorld.png", pizza.getStoreLogo());
+        assertEquals(2, pizza.getProducts().size());
+        Product pepperoni = pizza.getProducts().get(0);
+        assertEquals("Pepperoni", pepperoni.getProductName());
+        assertEquals("pizza", pepperoni.getProductType());
+        assertEquals(120, pepperoni.getAvailableAmount());
+        assertEquals(9.0, pepperoni.getPrice(), 0);
+
+        assertEquals(0, catalog.find("Ωμέγα").getProducts().size());
+        assertNull(catalog.find("BurgerZone"));
+        assertNull(catalog.find(""));
+    }
+
+    @Test
+    void decodedStoresAreIndependent(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("stores.bin");
+        BinaryCatalog.write(List.of(store("PizzaWorld", 1, 2, new Product("Pepperoni", "pizza", 10, 9.0))), file);
+        BinaryCatalog catalog = BinaryCatalog.open(file);
+
+        assertEquals(6, catalog.find("PizzaWorld").purchase("Pepperoni", 4));
+        assertEquals(10, catalog.find("PizzaWorld").getProduct("Pepperoni").getAvailableAmount());
+    }
+
+    @Test
+    void rejectsDuplicateNames(@TempDir Path dir) {
+        assertThrows(IllegalArgumentException.class, () -> BinaryCatalog.write(
+                List.of(store("PizzaWorld", 1, 2), store("PizzaWorld", 3, 4)), dir.resolve("stores.bin")));
+    }
+
+    @Test
+    void rejectsAFileThatIsNotACatalog(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("stores.json");
+        Files.writeString(file, "[{\"StoreName\":\"PizzaWorld\"}]");
+        assertThrows(IOException.class, () -> BinaryCatalog.open(file));
+    }
+}
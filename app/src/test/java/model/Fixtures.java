@@ -0,0 +1,42 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Shared test data and helpers. */
+public final class Fixtures {
+    private Fixtures() {}
+
+    /** A 4-star pizzeria with 17 votes, no sales and a logo named after it. */
+    public static Store store(String name, double lat, double lon, Product... products) {
+        return new Store(name, lat, lon, "pizzeria", 4, 17, 0.0, "logo/" + name + ".png",
+                new ArrayList<>(List.of(products)));
+    }
+
+    /** Runs {@code task} on {@code threads} threads at once, {@code rounds} times each. */
+    public static void hammer(int threads, int rounds, Runnable task) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < rounds; i++) {
+                    task.run();
+                }
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,143 @@
+package model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static model.Fixtures.hammer;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StoreTest {
+
+    private static Store store(int pepperoni, int margherita) {
+        return Fixtures.store("PizzaWorld", 37.98, 23.73,
+                new Product("Pepperoni", "pizza", pepperoni, 10.0),
+                new Product("Margherita", "pizza", margherita, 8.0));
+    }
+
+    @Test
+    void concurrentPurchasesNeverOversell() throws InterruptedException {
+        Store s = store(1_000, 0);
+        AtomicInteger sold = new AtomicInteger();
+        hammer(8, 500, () -> {
+            if (s.purchase("Pepperoni", 1) >= 0) sold.incrementAndGet();
+        });
+        assertEquals(1_000, sold.get());
+        assertEquals(0, s.getProduct("Pepperoni").getAvailableAmount());
+        assertEquals(1_000, s.getSalesRecord().get("Pepperoni").getQuantity());
+        assertEquals(10_000.0, s.getTotalRevenue(), 1e-6);
+    }
+
+    @Test
+    void purchaseReportsWhatIsLeft() {
+        Store s = store(5, 0);
+        assertEquals(2, s.purchase("Pepperoni", 3));
+        assertEquals(-1, s.purchase("Pepperoni", 3));
+        assertEquals(-1, s.purchase("Pepperoni", 0));
+        assertEquals(-1, s.purchase("Calzone", 1));
+        assertEquals(2, s.getProduct("Pepperoni").getAvailableAmount());
+    }
+
+    @Test
+    void rejectedCartTakesNothing() {
+        Store s = store(5, 2);
+        assertNull(s.purchaseCart(List.of(new CartItem("Pepperoni", 1), new CartItem("Margherita", 3))));
+        assertEquals(5, s.getProduct("Pepperoni").getAvailableAmount());
+        assertEquals(2, s.getProduct("Margherita").getAvailableAmount());
+        assertEquals(0.0, s.getTotalRevenue(), 0);
+
+        Map<String, Integer> left = s.purchaseCart(List.of(
+                new CartItem("Pepperoni", 1), new CartItem("Margherita", 2), new CartItem("Pepperoni", 1)));
+        assertNotNull(left);
+        assertEquals(3, (int) left.get("Pepperoni"));
+        assertEquals(0, (int) left.get("Margherita"));
+    }
+
+    @Test
+    void cartsAndSingleOrdersShareTheStockExactly() throws InterruptedException {
+        Store s = store(600, 600);
+        AtomicInteger pepperoni = new AtomicInteger(), margherita = new AtomicInteger();
+        hammer(8, 200, () -> {
+            if (ThreadLocalRandom.current().nextBoolean()) {
+                if (s.purchaseCart(List.of(new CartItem("Pepperoni", 2), new CartItem("Margherita", 1))) != null) {
+                    pepperoni.addAndGet(2);
+                    margherita.addAndGet(1);
+                }
+            } else if (s.purchase("Margherita", 1) >= 0) {
+                margherita.incrementAndGet();
+            }
+        });
+        assertEquals(600 - pepperoni.get(), s.getProduct("Pepperoni").getAvailableAmount());
+        assertEquals(600 - margherita.get(), s.getProduct("Margherita").getAvailableAmount());
+        assertTrue(s.getProduct("Pepperoni").getAvailableAmount() >= 0);
+        assertTrue(s.getProduct("Margherita").getAvailableAmount() >= 0);
+    }
+
+    @Test
+    void frozenStoreTakesNoOrders() {
+        Store s = store(5, 5);
+        String state = s.freeze();
+        assertTrue(s.isFrozen());
+        assertTrue(state.contains("PizzaWorld"));
+        assertEquals(-1, s.purchase("Pepperoni", 1));
+        assertNull(s.purchaseCart(List.of(new CartItem("Pepperoni", 1))));
+        assertNull(s.changeStock(s.getProduct("Pepperoni"), amount -> amount + 1));
+        assertEquals(5, s.getProduct("Pepperoni").getAvailableAmount());
+
+        s.setFrozen(false);
+        assertEquals(4, s.purchase("Pepperoni", 1));
+    }
+
+    @Test
+    void removeProductMatchesNamesAsLookupDoes() {
+        Store s = store(5, 5);
+        s.addProduct(new Product(" Calzone ", "pizza", 3, 9.0));
+        assertNotNull(s.getProduct("Calzone"));
+        assertTrue(s.removeProduct("Calzone"));
+        assertNull(s.getProduct("Calzone"));
+        assertTrue(s.removeProduct(" Pepperoni"));
+        assertNull(s.getProduct("Pepperoni"));
+        assertEquals(1, s.getProducts().size());
+    }
+
+    @Test
+    void onlyChangesThatTookEffectAreReported() {
+        Store s = store(5, 5);
+        List<String> reported = new ArrayList<>();
+        s.setJournal(new StoreJournal() {
+            public void sold(Store store, Map<Product, Integer> quantities) {
+                quantities.forEach((p, q) -> reported.add("sold " + q + " " + p.getProductName()));
+            }
+            public void stockChanged(Store store, Product product, int delta) {
+                reported.add("stock " + delta + " " + product.getProductName());
+            }
+            public void reviewed(Store store, int stars, int votes) {
+                reported.add("rated " + stars + " of " + votes);
+            }
+            public void productAdded(Store store, Product product) {
+                reported.add("added " + product.getProductName());
+            }
+            public void productRemoved(Store store, String productName) {
+                reported.add("removed " + productName);
+            }
+        });
+        assertEquals(-1, s.purchase("Pepperoni", 6));
+        assertNull(s.purchaseCart(List.of(new CartItem("Pepperoni", 1), new CartItem("Margherita", 9))));
+        assertEquals(-1, (int) s.changeStock(s.getProduct("Margherita"), amount -> amount - 9));
+        assertEquals(5, (int) s.changeStock(s.getProduct("Margherita"), amount -> 5));
+        assertTrue(reported.isEmpty());
+
+        s.purchase("Pepperoni", 2);
+        s.purchaseCart(List.of(new CartItem("Margherita", 1)));
+        s.changeStock(s.getProduct("Pepperoni"), amount -> 10);
+        s.updateStoreReviews(5);
+        assertEquals(List.of("sold 2 Pepperoni", "sold 1 Margherita", "stock 7 Pepperoni", "rated 4 of 18"), reported);
+    }
+}